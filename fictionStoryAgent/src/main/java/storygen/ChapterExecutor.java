@@ -0,0 +1,113 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Processes the chapters of a story concurrently, each chapter on its own virtual thread.
+ * <p>
+ * Chapter processing is made of long blocking network calls,
+ * so it doesn't belong in the common fork-join pool, which only has a worker or two on small CPUs.
+ * Results are returned in the order of the chapters, and when one chapter fails,
+ * the chapters still in progress are cancelled.
+ */
+class ChapterExecutor {
+
+    private final int parallelism;
+
+    /**
+     * @param parallelism the maximum number of chapters processed at the same time
+     */
+    ChapterExecutor(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    <T, R> List<R> mapInOrder(List<T> chapters, Function<T, R> processing) throws InterruptedException, ExecutionException {
+        try (Batch<R> batch = newBatch()) {
+            chapters.forEach(chapter -> batch.submit(() -> processing.apply(chapter)));
+            return batch.awaitAll();
+        }
+    }
+
+    /**
+     * Creates a batch to which chapters can be submitted as they become available,
+     * for example while the story is still being streamed.
+     */
+    <R> Batch<R> newBatch() {
+        return new Batch<>();
+    }
+
+    class Batch<R> implements AutoCloseable {
+        private final Semaphore permits = new Semaphore(parallelism);
+        private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        private final ExecutorCompletionService<R> completionService = new ExecutorCompletionService<>(executor);
+        private final List<Future<R>> futures = new ArrayList<>();
+
+        synchronized void submit(Callable<R> processing) {
+            futures.add(completionService.submit(() -> {
+                permits.acquire();
+                try {
+                    return processing.call();
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        synchronized int size() {
+            return futures.size();
+        }
+
+        /**
+         * Waits for all the submitted chapters, and returns their results in submission order.
+         */
+        List<R> awaitAll() throws InterruptedException, ExecutionException {
+            List<Future<R>> submitted;
+            synchronized (this) {
+                submitted = List.copyOf(futures);
+            }
+
+            try {
+                for (int i = 0; i < submitted.size(); i++) {
+                    completionService.take().get();
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                submitted.forEach(future -> future.cancel(true));
+                throw e;
+            }
+
+            return submitted.stream().map(Future::resultNow).toList();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                futures.forEach(future -> future.cancel(true));
+            }
+            executor.close();
+        }
+    }
+}
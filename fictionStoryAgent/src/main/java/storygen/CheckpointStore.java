@@ -0,0 +1,85 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.storage.Storage;
+import com.google.gson.Gson;
+
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the output of each completed stage of a run, so that a failed run can be resumed
+ * without paying again for the stages which already succeeded.
+ * <p>
+ * Each stage output is a small JSON value saved under its own key, like <code>story-1/chapter-2/images</code>,
+ * so checkpointing a stage never rewrites the outputs of the other stages.
+ * Implemented by {@link GcsCheckpointStore}, which outlives the Cloud Run task which failed,
+ * by {@link FileCheckpointStore} to run the pipeline locally, or {@link #NONE} when checkpointing is disabled.
+ */
+interface CheckpointStore {
+
+    CheckpointStore NONE = new CheckpointStore() {
+        @Override
+        public Optional<String> load(String key) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void save(String key, String json) {
+        }
+    };
+
+    Gson GSON = new Gson();
+
+    /**
+     * @param location a <code>gs://bucket/prefix</code> URI, or a local directory
+     * @param runId    the run to checkpoint, or null to disable checkpointing
+     */
+    static CheckpointStore open(String location, String runId, Supplier<Storage> storage) {
+        if (runId == null) {
+            return NONE;
+        }
+        if (!runId.matches("[\\w.-]+")) {
+            throw new IllegalArgumentException("A run ID can only contain letters, digits, '.', '_' and '-': " + runId);
+        }
+        return location.startsWith("gs://") ? new GcsCheckpointStore(storage, location, runId) :
+            new FileCheckpointStore(Path.of(location), runId);
+    }
+
+    Optional<String> load(String key);
+
+    void save(String key, String json);
+
+    default <T> Optional<T> load(String key, Type type) {
+        return load(key).map(json -> GSON.fromJson(json, type));
+    }
+
+    /**
+     * Returns the checkpointed output of a stage, or runs the stage and checkpoints its output.
+     */
+    default <T, E extends Exception> T getOrCompute(String key, Type type, RunMetrics.StageWork<T, E> stage) throws E {
+        Optional<T> checkpointed = load(key, type);
+        if (checkpointed.isPresent()) {
+            return checkpointed.get();
+        }
+        T output = stage.get();
+        save(key, GSON.toJson(output, type));
+        return output;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.vertexai.api.Schema;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.vertexai.VertexAiGeminiChatModel;
+import dev.langchain4j.model.vertexai.VertexAiGeminiStreamingChatModel;
+import dev.langchain4j.model.vertexai.VertexAiImageModel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived model, Firestore and Cloud Storage clients, shared across chapters and stories.
+ * Each client owns its own gRPC channel and credentials,
+ * so they are built once per configuration, and closed when the registry is closed.
+ */
+class ClientRegistry implements AutoCloseable {
+
+    record ChatModelKey(String modelName, Float temperature, Schema responseSchema) {}
+
+    record ClientStats(String client, long created, long reused) {
+        @Override
+        public String toString() {
+            return client + ": " + created + " created, " + reused + " reused";
+        }
+    }
+
+    private static final String TRAINING_EMULATOR_HOST = "localhost:9";
+    private static final Duration TRAINING_CALL_TIMEOUT = Duration.ofSeconds(10);
+
+    private final String projectId;
+    private final String location;
+    private final String vertexAiEndpoint;
+    private final String imageBucket;
+    private final String emulatorHost;
+
+    private final Map<ChatModelKey, VertexAiGeminiChatModel> chatModels = new ConcurrentHashMap<>();
+    private final Map<ChatModelKey, VertexAiGeminiStreamingChatModel> streamingChatModels = new ConcurrentHashMap<>();
+    private final Map<String, VertexAiImageModel> imageModels = new ConcurrentHashMap<>();
+    private volatile Firestore firestore;
+    private volatile Storage storage;
+
+    private final Counter chatModelCounter = new Counter("chat models");
+    private final Counter streamingChatModelCounter = new Counter("streaming chat models");
+    private final Counter imageModelCounter = new Counter("image models");
+    private final Counter firestoreCounter = new Counter("firestore");
+    private final Counter storageCounter = new Counter("cloud storage");
+
+    ClientRegistry(String projectId, String location, String vertexAiEndpoint, String imageBucket) {
+        this(projectId, location, vertexAiEndpoint, imageBucket, null);
+    }
+
+    /**
+     * @param emulatorHost the host and port of local Firestore and Cloud Storage emulators, used without credentials,
+     *                     or null for Google Cloud
+     */
+    private ClientRegistry(String projectId, String location, String vertexAiEndpoint, String imageBucket, String emulatorHost) {
+        this.projectId = projectId;
+        this.location = location;
+        this.vertexAiEndpoint = vertexAiEndpoint;
+        this.imageBucket = imageBucket;
+        this.emulatorHost = emulatorHost;
+    }
+
+    /**
+     * Builds each client and makes a call with it, so that a training run loads the classes of the real clients
+     * (Vertex AI, gRPC, Firestore, Cloud Storage) for the AppCDS archive, whereas an offline run only loads the fake ones.
+     * <p>
+     * The calls are made without credentials, and Firestore and Cloud Storage are reached through a local port
+     * where nothing listens, so they fail without ever reaching Google Cloud, their failures being only logged.
+     */
+    static void loadClientClasses(String projectId, String location, String vertexAiEndpoint, String imageBucket,
+                                  String chatModelName, String imageModelName) {
+        String trainingProjectId = Objects.requireNonNullElse(projectId, "training-run");
+        String trainingLocation = Objects.requireNonNullElse(location, "us-central1");
+        String trainingEndpoint = Objects.requireNonNullElse(vertexAiEndpoint, trainingLocation + "-aiplatform.googleapis.com:443");
+        List<ChatMessage> messages = List.of(UserMessage.from("Training run"));
+        var clients = new ClientRegistry(trainingProjectId, trainingLocation, trainingEndpoint, imageBucket, TRAINING_EMULATOR_HOST);
+        // not closed but shut down, as a call which ignores its interruption would block the closing
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try (var models = new VertexAiModelProvider(clients)) {
+            attempt(executor, "chat model", () -> models.chat(chatModelName, null, null, messages));
+            attempt(executor, "streaming chat model", () -> {
+                models.streamChat(chatModelName, null, null, messages, new StreamingResponseHandler<AiMessage>() {
+                    @Override
+                    public void onNext(String token) {
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                    }
+                });
+                return null;
+            });
+            attempt(executor, "image model", () -> models.generateImages(imageModelName, "Training run", 1));
+            attempt(executor, "firestore", () -> clients.firestore().collection(StoryStore.COLLECTION).document("training-run")
+                .get().get(TRAINING_CALL_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+            attempt(executor, "cloud storage", () -> clients.storage().readAllBytes(
+                BlobId.of(imageBucket.replaceFirst("^gs://", ""), "training-run")));
+        } catch (Exception e) {
+            System.out.println("Couldn't close the clients of the training run: " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void attempt(ExecutorService executor, String client, Callable<?> call) {
+        Future<?> future = executor.submit(call);
+        try {
+            future.get(TRAINING_CALL_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            System.out.println("Training call of the " + client + " succeeded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            future.cancel(true);
+            System.out.println("Training call of the " + client + " failed, as expected: " + e);
+        }
+    }
+
+    /**
+     * @param temperature the temperature of the model, or null for the model's default
+     * @param responseSchema the JSON schema of the response, or null for a plain text response
+     */
+    VertexAiGeminiChatModel chatModel(String modelName, Float temperature, Schema responseSchema) {
+        chatModelCounter.requested.incrementAndGet();
+        return chatModels.computeIfAbsent(new ChatModelKey(modelName, temperature, responseSchema), key -> {
+            chatModelCounter.created.incrementAndGet();
+            var builder = VertexAiGeminiChatModel.builder()
+                .project(projectId)
+                .location(location)
+                .modelName(key.modelName);
+            if (key.temperature != null) {
+                builder.temperature(key.temperature);
+            }
+            if (key.responseSchema != null) {
+                builder.responseSchema(key.responseSchema);
+            }
+            return builder.build();
+        });
+    }
+
+    VertexAiGeminiStreamingChatModel streamingChatModel(String modelName, Float temperature, Schema responseSchema) {
+        streamingChatModelCounter.requested.incrementAndGet();
+        return streamingChatModels.computeIfAbsent(new ChatModelKey(modelName, temperature, responseSchema), key -> {
+            streamingChatModelCounter.created.incrementAndGet();
+            var builder = VertexAiGeminiStreamingChatModel.builder()
+                .project(projectId)
+                .location(location)
+                .modelName(key.modelName);
+            if (key.temperature != null) {
+                builder.temperature(key.temperature);
+            }
+            if (key.responseSchema != null) {
+                builder.responseSchema(key.responseSchema);
+            }
+            return builder.build();
+        });
+    }
+
+    VertexAiImageModel imageModel(String modelName) {
+        imageModelCounter.requested.incrementAndGet();
+        return imageModels.computeIfAbsent(modelName, name -> {
+            imageModelCounter.created.incrementAndGet();
+            return VertexAiImageModel.builder()
+                .project(projectId)
+                .location(location)
+                .endpoint(vertexAiEndpoint)
+                .modelName(name)
+                .publisher("google")
+                .withPersisting()
+                .persistToCloudStorage(imageBucket)
+                .build();
+        });
+    }
+
+    Firestore firestore() {
+        firestoreCounter.requested.incrementAndGet();
+        if (firestore == null) {
+            synchronized (this) {
+                if (firestore == null) {
+                    firestoreCounter.created.incrementAndGet();
+                    try {
+                        var builder = FirestoreOptions.getDefaultInstance().toBuilder()
+                            .setProjectId(projectId);
+                        if (emulatorHost != null) {
+                            builder.setEmulatorHost(emulatorHost).setCredentials(NoCredentials.getInstance());
+                        } else {
+                            builder.setCredentials(GoogleCredentials.getApplicationDefault());
+                        }
+                        firestore = builder.build().getService();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Couldn't load the application default credentials", e);
+                    }
+                }
+            }
+        }
+        return firestore;
+    }
+
+    Storage storage() {
+        storageCounter.requested.incrementAndGet();
+        if (storage == null) {
+            synchronized (this) {
+                if (storage == null) {
+                    storageCounter.created.incrementAndGet();
+                    try {
+                        var builder = StorageOptions.getDefaultInstance().toBuilder()
+                            .setProjectId(projectId);
+                        if (emulatorHost != null) {
+                            builder.setHost("http://" + emulatorHost).setCredentials(NoCredentials.getInstance());
+                        } else {
+                            builder.setCredentials(GoogleCredentials.getApplicationDefault());
+                        }
+                        storage = builder.build().getService();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Couldn't load the application default credentials", e);
+                    }
+                }
+            }
+        }
+        return storage;
+    }
+
+    List<ClientStats> stats() {
+        return List.of(chatModelCounter.stats(), streamingChatModelCounter.stats(),
+            imageModelCounter.stats(), firestoreCounter.stats(), storageCounter.stats());
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (VertexAiGeminiChatModel chatModel : chatModels.values()) {
+            chatModel.close();
+        }
+        chatModels.clear();
+        for (VertexAiGeminiStreamingChatModel streamingChatModel : streamingChatModels.values()) {
+            streamingChatModel.close();
+        }
+        streamingChatModels.clear();
+        imageModels.clear();
+        if (firestore != null) {
+            firestore.close();
+            firestore = null;
+        }
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    private record Counter(String client, AtomicLong requested, AtomicLong created) {
+        Counter(String client) {
+            this(client, new AtomicLong(), new AtomicLong());
+        }
+
+        ClientStats stats() {
+            return new ClientStats(client, created.get(), requested.get() - created.get());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of in-flight calls to a model,
+ * so that many stories generated at once don't exceed the model's quota.
+ */
+class ConcurrencyLimiter {
+
+    private final String name;
+    private final int maxConcurrentCalls;
+    private final Semaphore permits;
+
+    ConcurrencyLimiter(String name, int maxConcurrentCalls) {
+        this.name = name;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.permits = new Semaphore(maxConcurrentCalls, true);
+    }
+
+    <T> T call(Supplier<T> call) {
+        return call(call, queuedNanos -> {});
+    }
+
+    /**
+     * @param onQueued receives the time spent waiting for a permit, in nanoseconds
+     */
+    <T> T call(Supplier<T> call, LongConsumer onQueued) {
+        long start = System.nanoTime();
+        try {
+            permits.acquire();
+            onQueued.accept(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a " + name + " permit");
+        }
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (max " + maxConcurrentCalls + " concurrent calls)";
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import storygen.ExplicitStoryGeneratorAgent.Story;
+import storygen.StoryStore.StoredStory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Finds the past stories a new story is too similar to, before paying for its images.
+ * <p>
+ * Each story is summed up by a MinHash signature of the 3-word shingles of its title and chapters,
+ * whose matching values estimate the Jaccard similarity of two stories.
+ * The signatures are split in bands of {@value #ROWS_PER_BAND} values, and stories sharing a band
+ * are the only candidates compared with a new story (locality-sensitive hashing),
+ * so that a lookup doesn't compare the new story with the whole archive.
+ * <p>
+ * The signatures are saved in the story store, next to the stories, as the local disk of a Cloud Run job doesn't last:
+ * in chunk documents of up to {@value #CHUNK_SIZE} signatures (<code>chunk-00000</code>, <code>chunk-00001</code>...),
+ * about 700 bytes each, so that loading the index reads a handful of documents rather than every story.
+ * The first time, the index is built from the stories of the store.
+ */
+class DuplicateStoryIndex {
+
+    static final String COLLECTION = "short-story-signatures";
+    static final String META = "meta";
+    static final int CHUNK_SIZE = 1000;
+
+    record Match(String title, double similarity) {}
+
+    /**
+     * The signature of an indexed story, as saved in the story store.
+     */
+    record Entry(String title, String signature) {
+
+        Map<String, Object> toFields() {
+            return Map.of("title", title, "signature", signature);
+        }
+
+        static Entry fromFields(Map<?, ?> fields) {
+            return new Entry((String) fields.get("title"), (String) fields.get("signature"));
+        }
+    }
+
+    /**
+     * The documents to write: the chunks which changed, by chunk number, and the meta document.
+     */
+    record Update(Map<Integer, List<Entry>> chunks, Map<String, Object> meta) {}
+
+    private static final int NUM_HASHES = 128;
+    private static final int ROWS_PER_BAND = 2;
+    private static final int SHINGLE_SIZE = 3;
+    private static final long[] SEEDS = new Random(42).longs(NUM_HASHES).toArray();
+
+    private final double threshold;
+    private final StoryStore storyStore;
+    /** The titles of the indexed stories, null for a story removed from the index */
+    private final List<String> titles = new ArrayList<>();
+    private final List<int[]> signatures = new ArrayList<>();
+    private final List<Map<Long, List<Integer>>> bands = new ArrayList<>();
+    /** The positions of the accepted stories which aren't saved yet */
+    private final List<Integer> unsaved = new ArrayList<>();
+
+    /**
+     * @param threshold  the estimated Jaccard similarity above which a story is a near-duplicate
+     * @param storyStore where the signatures are saved
+     */
+    DuplicateStoryIndex(double threshold, StoryStore storyStore) {
+        this.threshold = threshold;
+        this.storyStore = storyStore;
+        for (int band = 0; band < NUM_HASHES / ROWS_PER_BAND; band++) {
+            bands.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Loads the signatures saved in the story store, or indexes the stories of the store when there are none yet.
+     */
+    static DuplicateStoryIndex open(double threshold, StoryStore storyStore) throws Exception {
+        var index = new DuplicateStoryIndex(threshold, storyStore);
+        List<Entry> entries = storyStore.duplicateIndexEntries();
+        if (entries != null) {
+            entries.forEach(entry -> index.add(entry.title(), decode(entry.signature())));
+            System.out.println("Duplicate index loaded with " + index.size() + " stories");
+        } else {
+            List<Entry> builtEntries = new ArrayList<>();
+            for (StoredStory story : storyStore.publishedStories()) {
+                String title = (String) story.fields().get("title");
+                int[] signature = signature(text(story.fields()));
+                if (index.add(title, signature) >= 0) {
+                    builtEntries.add(new Entry(title, encode(signature)));
+                }
+            }
+            storyStore.addDuplicateIndexEntries(builtEntries);
+            System.out.println("Duplicate index built from " + index.size() + " saved stories");
+        }
+        return index;
+    }
+
+    synchronized int size() {
+        return (int) titles.stream().filter(title -> title != null).count();
+    }
+
+    /**
+     * Adds the story to the index unless it's a near-duplicate of an indexed story, in a single step,
+     * so that two similar stories prepared at the same time can't both be accepted.
+     * The signature of an accepted story is only saved by {@link #saveAccepted}, once the story itself is saved,
+     * and an accepted story which is never saved is removed by {@link #forget}.
+     * A story too short to have any shingle can't be compared, so it's accepted without being indexed.
+     *
+     * @return the most similar indexed story, when the story is a near-duplicate and wasn't added
+     */
+    synchronized Optional<Match> addIfOriginal(Story story) {
+        int[] signature = signature(text(story));
+        Optional<Match> match = findNearDuplicate(signature);
+        if (match.isEmpty()) {
+            int position = add(story.title(), signature);
+            if (position >= 0) {
+                unsaved.add(position);
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Saves the signature of a story which was saved, indexing it first when it wasn't accepted by this index,
+     * like a story resumed from a checkpoint. A failure is only logged, as the story is already saved.
+     */
+    void saveAccepted(Story story) {
+        int[] signature = signature(text(story));
+        synchronized (this) {
+            int position = unsavedPosition(signature);
+            if (position >= 0) {
+                unsaved.remove(Integer.valueOf(position));
+            } else if (add(story.title(), signature) < 0) {
+                return;
+            }
+        }
+        try {
+            storyStore.addDuplicateIndexEntries(List.of(new Entry(story.title(), encode(signature))));
+        } catch (Exception e) {
+            System.out.println("Couldn't save the signature of \"" + story.title() + "\" in the duplicate index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes an accepted story which couldn't be illustrated or saved, so that it doesn't keep similar stories out.
+     */
+    synchronized void forget(Story story) {
+        int position = unsavedPosition(signature(text(story)));
+        if (position >= 0) {
+            unsaved.remove(Integer.valueOf(position));
+            titles.set(position, null);
+        }
+    }
+
+    private Optional<Match> findNearDuplicate(int[] signature) {
+        if (isEmpty(signature)) {
+            return Optional.empty();
+        }
+        Set<Integer> candidates = new HashSet<>();
+        for (int band = 0; band < bands.size(); band++) {
+            List<Integer> bucket = bands.get(band).get(bandKey(signature, band));
+            if (bucket != null) {
+                candidates.addAll(bucket);
+            }
+        }
+
+        Match best = null;
+        for (int candidate : candidates) {
+            if (titles.get(candidate) == null) {
+                continue;
+            }
+            double similarity = similarity(signature, signatures.get(candidate));
+            if (similarity >= threshold && (best == null || similarity > best.similarity())) {
+                best = new Match(titles.get(candidate), similarity);
+            }
+        }
+        return Optional.ofNullable(best);
+    }
+
+    /**
+     * @return the position of the story in the index, or -1 when its signature is empty and it isn't indexed
+     */
+    private int add(String title, int[] signature) {
+        if (isEmpty(signature)) {
+            return -1;
+        }
+        int position = signatures.size();
+        titles.add(title);
+        signatures.add(signature);
+        for (int band = 0; band < bands.size(); band++) {
+            bands.get(band).computeIfAbsent(bandKey(signature, band), key -> new ArrayList<>(1)).add(position);
+        }
+        return position;
+    }
+
+    private int unsavedPosition(int[] signature) {
+        return unsaved.stream()
+            .filter(position -> Arrays.equals(signatures.get(position), signature))
+            .findFirst()
+            .orElse(-1);
+    }
+
+    /**
+     * Appends signatures to the last chunk, and to new chunks once it's full,
+     * skipping the signatures already in the last chunk, as a failed save may be retried.
+     *
+     * @param chunkCount the number of chunks, 0 when the index was never saved
+     * @param lastChunk  the signatures of the last chunk
+     */
+    static Update append(int chunkCount, List<Entry> lastChunk, List<Entry> entries) {
+        Map<Integer, List<Entry>> chunks = new LinkedHashMap<>();
+        List<Entry> chunk = new ArrayList<>(lastChunk);
+        int chunkNumber = Math.max(0, chunkCount - 1);
+        for (Entry entry : entries) {
+            if (lastChunk.contains(entry)) {
+                continue;
+            }
+            if (chunk.size() >= CHUNK_SIZE) {
+                chunks.put(chunkNumber++, chunk);
+                chunk = new ArrayList<>();
+            }
+            chunk.add(entry);
+        }
+        if (!chunk.isEmpty() || chunkCount == 0) {
+            chunks.put(chunkNumber, chunk);
+        }
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("chunks", chunkNumber + 1);
+        meta.put("chunkSize", CHUNK_SIZE);
+        return new Update(chunks, meta);
+    }
+
+    static Map<String, Object> chunkFields(List<Entry> entries) {
+        return Map.of("signatures", entries.stream().map(Entry::toFields).toList());
+    }
+
+    static List<Entry> entries(Map<String, Object> chunkFields) {
+        if (chunkFields == null || !(chunkFields.get("signatures") instanceof List<?> entries)) {
+            return List.of();
+        }
+        return entries.stream().map(fields -> Entry.fromFields((Map<?, ?>) fields)).toList();
+    }
+
+    static int[] signature(String text) {
+        String[] words = text.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim().split(" ");
+        int[] signature = new int[NUM_HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int start = 0; start + SHINGLE_SIZE <= words.length; start++) {
+            long shingle = 1125899906842597L;
+            for (int i = start; i < start + SHINGLE_SIZE; i++) {
+                shingle = 31 * shingle + words[i].hashCode();
+            }
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int value = (int) (mix(shingle ^ SEEDS[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * A text with fewer words than a shingle keeps the initial signature,
+     * which would match every other such text.
+     */
+    static boolean isEmpty(int[] signature) {
+        return Arrays.stream(signature).allMatch(value -> value == Integer.MAX_VALUE);
+    }
+
+    static double similarity(int[] signature, int[] otherSignature) {
+        int matches = 0;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            if (signature[i] == otherSignature[i]) {
+                matches++;
+            }
+        }
+        return (double) matches / NUM_HASHES;
+    }
+
+    static String encode(int[] signature) {
+        ByteBuffer buffer = ByteBuffer.allocate(NUM_HASHES * Integer.BYTES);
+        buffer.asIntBuffer().put(signature);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    static int[] decode(String signature) {
+        int[] values = new int[NUM_HASHES];
+        ByteBuffer.wrap(Base64.getDecoder().decode(signature)).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int i = band * ROWS_PER_BAND; i < (band + 1) * ROWS_PER_BAND; i++) {
+            key = 31 * key + signature[i];
+        }
+        return key;
+    }
+
+    /**
+     * The finalizer of SplitMix64, to turn a shingle into a well distributed hash for each seed.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    private static String text(Story story) {
+        StringBuilder text = new StringBuilder(story.title());
+        story.chapters().forEach(chapter -> text.append(' ').append(chapter.chapterTitle()).append(' ').append(chapter.chapterContent()));
+        return text.toString();
+    }
+
+    private static String text(Map<String, Object> fields) {
+        StringBuilder text = new StringBuilder(String.valueOf(fields.get("title")));
+        if (fields.get("chapters") instanceof List<?> chapters) {
+            for (Object chapter : chapters) {
+                Map<?, ?> chapterFields = (Map<?, ?>) chapter;
+                text.append(' ').append(chapterFields.get("chapterTitle")).append(' ').append(chapterFields.get("chapterContent"));
+            }
+        }
+        return text.toString();
+    }
+}
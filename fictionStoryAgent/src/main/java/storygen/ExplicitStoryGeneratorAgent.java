@@ -15,50 +15,54 @@
  */
 package storygen;
 
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.Timestamp;
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.WriteResult;
 import com.google.cloud.vertexai.api.Schema;
 import com.google.cloud.vertexai.api.Type;
 import com.google.gson.Gson;
-import dev.langchain4j.data.image.Image;
+import com.google.gson.reflect.TypeToken;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.data.message.ImageContent;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.output.FinishReason;
 import dev.langchain4j.model.output.Response;
 import dev.langchain4j.model.output.structured.Description;
-import dev.langchain4j.model.vertexai.VertexAiGeminiChatModel;
-import dev.langchain4j.model.vertexai.VertexAiImageModel;
 
-import java.io.IOException;
-import java.text.Normalizer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.function.Supplier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
-public class ExplicitStoryGeneratorAgent {
+public class ExplicitStoryGeneratorAgent implements AutoCloseable {
 
-//    private static final String CHAT_MODEL_NAME = "gemini-2.0-flash-exp";
-//    private static final String CHAT_MODEL_NAME = "gemini-1.5-flash-002";
-    private static final String CHAT_MODEL_NAME = "gemini-1.5-pro-002";
     private static final String IMAGE_MODEL_NAME = "imagen-3.0-generate-002";
 
     private static final String GCP_PROJECT_ID = System.getenv("GCP_PROJECT_ID");
     private static final String GCP_LOCATION = System.getenv("GCP_LOCATION");
     private static final String GCP_VERTEXAI_ENDPOINT = System.getenv("GCP_VERTEXAI_ENDPOINT");
 
-    private static final Supplier<VertexAiGeminiChatModel.VertexAiGeminiChatModelBuilder> CHAT_MODEL_BUILDER = () ->
-        VertexAiGeminiChatModel.builder()
-            .project(GCP_PROJECT_ID)
-            .location(GCP_LOCATION)
-            .modelName(CHAT_MODEL_NAME);
+    private static final String IMAGE_BUCKET = "gs://genai-java-demos.firebasestorage.app";
 
     private static final Random RANDOM = new Random();
 
@@ -244,80 +248,515 @@ public class ExplicitStoryGeneratorAgent {
             String chapterTitle,
             @Description("The content of the chapter")
             String chapterContent,
+            @Description("The paragraphs of the content of the chapter")
+            List<String> paragraphs,
             @Description("The Google Cloud Storage URI of the image that represents the content of the chapter")
-            String gcsURI) {
+            String gcsURI,
+            @Description("Smaller variants of the image, followed by the image itself")
+            List<ImageVariant> imageVariants) {
+
+            record ImageVariant(String uri, int width, int height) {}
+
+            /**
+             * When the story is generated with paragraphs, the content of a chapter is made of its paragraphs.
+             */
+            Chapter withContentFromParagraphs() {
+                if (chapterContent != null || paragraphs == null) {
+                    return this;
+                }
+                return new Chapter(chapterTitle, String.join("\n\n", paragraphs), paragraphs, gcsURI, imageVariants);
+            }
+        }
+
+        Story withContentFromParagraphs() {
+            return new Story(title, chapters.stream().map(Chapter::withContentFromParagraphs).toList());
         }
     }
 
-    public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
+    private final ConcurrencyLimiter chatLimiter;
+    private final ConcurrencyLimiter imageLimiter;
+    private final ModelProvider models;
+    private final StoryStore storyStore;
+    private final ChapterExecutor chapterExecutor;
+    private final ExecutorService stageExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final boolean streaming;
+    private final ResponseCache responseCache;
+    private final StoryType fixedStoryType;
+    private final RunMetrics metrics = new RunMetrics();
+    private final CheckpointStore checkpoints;
+    private final ResilientCalls resilience;
+    private final ModelRouter router;
+    private final boolean duplicateDetection;
+    private final double duplicateThreshold;
+    private final int duplicateRetries;
+    private DuplicateStoryIndex duplicateIndex;
+    private final boolean legibilityPass;
+    private final boolean progressivePublishing;
+    private final Schema storySchema;
+    private final ImageJudge imageJudge;
+    private final ImageVariants imageVariants;
+
+    ExplicitStoryGeneratorAgent(GeneratorOptions options, ModelProvider models, StoryStore storyStore, ImageStore imageStore,
+                                CheckpointStore checkpoints) {
+        this.chatLimiter = new ConcurrencyLimiter("chat model", options.chatConcurrency);
+        this.imageLimiter = new ConcurrencyLimiter("image model", options.imageConcurrency);
+        this.models = models;
+        this.storyStore = storyStore;
+        this.chapterExecutor = new ChapterExecutor(options.chapterParallelism);
+        this.streaming = options.streaming;
+        this.legibilityPass = options.legibilityPass;
+        this.progressivePublishing = options.progressivePublishing;
+        this.storySchema = options.legibilityPass ? STORY_SCHEMA : STORY_PARAGRAPHS_SCHEMA;
+        this.imageJudge = new ImageJudge(options.judgeStrategy, options.judgeThumbnailSize, options.judgeScoreThreshold,
+            imageStore, (responseSchema, messages) -> chat(Stage.JUDGE, null, responseSchema, messages), stageExecutor);
+        this.imageVariants = new ImageVariants(options.imageVariantWidths, 0.8f, options.imageVariantsDirectory,
+            imageStore, stageExecutor);
+        this.fixedStoryType = options.storyType == null ? null : StoryType.valueOf(options.storyType);
+        this.responseCache = ResponseCache.open(options.cacheMode, options.cacheDirectory,
+            options.cacheMaxSizeMb * 1024L * 1024L);
+        this.duplicateDetection = options.duplicateDetection;
+        this.duplicateThreshold = options.duplicateThreshold;
+        this.duplicateRetries = options.duplicateRetries;
+        this.router = new ModelRouter(options.stageModels, options.chatModel, options.fallbackModel,
+            options.fallbackP95Millis, options.fallbackErrorRate, options.routingWindow, metrics);
+        this.resilience = new ResilientCalls(options.maxAttempts, options.retryBudget, options.hedging, metrics);
+        this.checkpoints = checkpoints;
+    }
+
+    record StoryOutcome(int storyNumber, StoryType storyType, String title, Timestamp savedAt, Throwable failure, Duration duration) {
+        boolean succeeded() {
+            return failure == null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
         System.setProperty("org.slf4j.simpleLogger.logFile", "System.out");
         System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "info");
 
-        StoryType storyType = StoryType.randomStoryType();
-        System.out.println("Story type: " + yellow(storyType.name()));
-        Story story = prepareStory(storyType.explanation);
+        GeneratorOptions options = GeneratorOptions.parse(args);
 
-        System.out.println(blue(story.title) + "\n");
-        story.chapters().forEach(chapter -> {
-            System.out.println(green(chapter.chapterTitle) + "\n");
-            System.out.println(chapter.chapterContent + "\n");
-        });
+        List<StoryOutcome> outcomes;
+        try (var agent = create(options)) {
+            System.out.println("Story generator started in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms\n");
+            System.out.println("Chat models: " + agent.router + "\n");
+            if (agent.checkpoints != CheckpointStore.NONE) {
+                System.out.println("Run " + yellow(options.runId) + ", with " + agent.checkpoints + "\n");
+            }
+            outcomes = agent.generateStories(options.storyCount, options.storyConcurrency);
+
+            System.out.println("\n" + cyan("Clients:"));
+            agent.models.stats().forEach(stats -> System.out.println(" - " + stats));
+            System.out.println(" - " + agent.responseCache.stats());
 
-        List<Story.Chapter> newChaptersWithImages = story.chapters.stream().parallel().map(chapter -> {
-            System.out.println("Generating images for: " + green(chapter.chapterTitle) + "\n");
+            System.out.println("\n" + cyan("Stages:") + "\n" + agent.metrics.summary());
+            if (options.metricsReport != null) {
+                agent.metrics.writeReport(options.metricsReport);
+                System.out.println("Metrics written to " + options.metricsReport);
+            }
+        }
 
-            String imagePrompt = prepareImagePromptForChapter(chapter);
-            System.out.println("Image prompt: " + yellow(imagePrompt));
+        if (outcomes.size() > 1) {
+            printBatchReport(outcomes);
+        }
+        if (outcomes.stream().anyMatch(outcome -> !outcome.succeeded())) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates an agent calling Vertex AI and saving to Firestore,
+     * or with fake models and an in-memory store in offline mode.
+     */
+    static ExplicitStoryGeneratorAgent create(GeneratorOptions options) {
+        if (options.offline) {
+            return new ExplicitStoryGeneratorAgent(options, FakeModelProvider.fromOptions(options), new InMemoryStoryStore(),
+                ImageStore.local(), CheckpointStore.open(Objects.requireNonNullElse(options.checkpointLocation, ".checkpoints"),
+                    options.runId, () -> {
+                        throw new IllegalStateException("Cloud Storage isn't available offline");
+                    }));
+        }
+        var clients = new ClientRegistry(GCP_PROJECT_ID, GCP_LOCATION, GCP_VERTEXAI_ENDPOINT, IMAGE_BUCKET);
+        return new ExplicitStoryGeneratorAgent(options, new VertexAiModelProvider(clients), new FirestoreStoryStore(clients::firestore),
+            new ImageStore(clients::storage), CheckpointStore.open(
+                Objects.requireNonNullElse(options.checkpointLocation, IMAGE_BUCKET + "/checkpoints"), options.runId, clients::storage));
+    }
+
+    /**
+     * For the training run of the AppCDS archive, see {@link ClientRegistry#loadClientClasses}.
+     */
+    static void loadClientClasses(GeneratorOptions options) {
+        ClientRegistry.loadClientClasses(GCP_PROJECT_ID, GCP_LOCATION, GCP_VERTEXAI_ENDPOINT, IMAGE_BUCKET,
+            options.chatModel, IMAGE_MODEL_NAME);
+    }
 
-            List<String> imagesForChapter = generateImages(imagePrompt);
-            imagesForChapter.forEach(imageUrl -> System.out.println(green(" - " + imageUrl)));
+    RunMetrics metrics() {
+        return metrics;
+    }
+
+    StoryStore storyStore() {
+        return storyStore;
+    }
+
+    @Override
+    public void close() throws Exception {
+        stageExecutor.close();
+        resilience.close();
+        responseCache.close();
+        storyStore.close();
+        models.close();
+    }
+
+    /**
+     * Generates several stories at once, each on its own virtual thread.
+     * The concurrency limiters keep the number of in-flight model calls under control.
+     *
+     * @param maxConcurrentStories the maximum number of stories generated at the same time
+     */
+    List<StoryOutcome> generateStories(int count, int maxConcurrentStories) throws InterruptedException {
+        List<Future<StoryOutcome>> futures = new ArrayList<>();
+        Semaphore storyPermits = new Semaphore(maxConcurrentStories);
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int storyNumber = 1; storyNumber <= count; storyNumber++) {
+                int currentStoryNumber = storyNumber;
+                futures.add(executor.submit(() -> {
+                    storyPermits.acquire();
+                    try {
+                        return generateStoryOutcome(currentStoryNumber);
+                    } finally {
+                        storyPermits.release();
+                    }
+                }));
+            }
+        }
+
+        List<StoryOutcome> outcomes = new ArrayList<>();
+        for (Future<StoryOutcome> future : futures) {
+            try {
+                outcomes.add(future.get());
+            } catch (ExecutionException e) {
+                // generateStoryOutcome() catches everything, this is not expected to happen
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return outcomes;
+    }
+
+    private StoryOutcome generateStoryOutcome(int storyNumber) {
+        long start = System.nanoTime();
+        String storyKey = "story-" + storyNumber;
+        StoryType storyType = null;
+        try {
+            storyType = checkpoints.getOrCompute(storyKey + "/type", StoryType.class,
+                () -> fixedStoryType != null ? fixedStoryType : StoryType.randomStoryType());
+            SavedStory saved = generateStory(storyKey, storyType);
+            metrics.recordStory(true);
+            return new StoryOutcome(storyNumber, storyType, saved.story.title, saved.savedAt,
+                null, Duration.ofNanos(System.nanoTime() - start));
+        } catch (Exception e) {
+            System.out.println(red("Story #" + storyNumber + " failed: " + e.getMessage()));
+            metrics.recordStory(false);
+            return new StoryOutcome(storyNumber, storyType, null, null,
+                e, Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    record SavedStory(Story story, Timestamp savedAt) {}
+
+    /**
+     * Generates a story of the given type, for the {@link StoryService}.
+     * Each story gets its own checkpoint key, as the service generates stories for as long as it runs.
+     */
+    SavedStory generateStory(StoryType storyType) throws Exception {
+        try {
+            SavedStory saved = generateStory("story-" + UUID.randomUUID(), storyType);
+            metrics.recordStory(true);
+            return saved;
+        } catch (Exception e) {
+            metrics.recordStory(false);
+            throw e;
+        }
+    }
 
-            String bestImage = pickBestImageForChapter(chapter.chapterContent, imagesForChapter);
-            System.out.println("Best image: " + yellow(bestImage));
+    record PooledStory(StoryType storyType, String documentId, Story story) {}
 
-            String moreLegibleChapter = improveChapterLegibility(chapter.chapterContent);
-            System.out.println("Update chapter's content: " + green(chapter.chapterTitle) + "\n\n" + moreLegibleChapter);
+    /**
+     * Generates a story of the given type for the pool of the {@link StoryService}, saved as a draft,
+     * so that it isn't on the website until it's served and published with {@link #publishPooledStory}.
+     */
+    PooledStory generateUnpublishedStory(StoryType storyType) throws Exception {
+        try {
+            Story story = illustrateStory("story-" + UUID.randomUUID(), storyType, null);
+            String documentId = StoryStore.documentId(story.title, RANDOM);
+            metrics.time(Stage.SAVE, () -> saveOriginal(story, () -> {
+                storyStore.saveDraft(documentId, story);
+                return null;
+            }));
+            System.out.println("Draft saved in Firestore: " + yellow(documentId) + "\n");
+            metrics.recordStory(true);
+            return new PooledStory(storyType, documentId, story);
+        } catch (Exception e) {
+            metrics.recordStory(false);
+            throw e;
+        }
+    }
 
-            return new Story.Chapter(chapter.chapterTitle, moreLegibleChapter, bestImage);
-        }).toList();
+    SavedStory publishPooledStory(PooledStory pooled) throws Exception {
+        Timestamp timestamp = metrics.time(Stage.SAVE, () -> storyStore.publish(pooled.documentId(), pooled.story()));
+        System.out.println("Saved in Firestore at: " + timestamp);
+        return new SavedStory(pooled.story(), timestamp);
+    }
 
-        Story newStoryWithImages = new Story(story.title, newChaptersWithImages);
+    /**
+     * @param storyKey the prefix of the checkpoints of the stages of this story
+     */
+    private SavedStory generateStory(String storyKey, StoryType storyType) throws Exception {
+        StoryDraft draft = progressivePublishing ? new StoryDraft(storyStore) : null;
+        Story newStoryWithImages = illustrateStory(storyKey, storyType, draft);
 
-        Timestamp timestamp = saveToFirestore(newStoryWithImages);
+        Timestamp timestamp = Timestamp.parseTimestamp(checkpoints.getOrCompute(storyKey + "/saved", String.class,
+            () -> metrics.time(Stage.SAVE, () -> saveOriginal(newStoryWithImages,
+                () -> saveToFirestore(draft, newStoryWithImages))).toString()));
         System.out.println("Saved in Firestore at: " + timestamp);
+
+        return new SavedStory(newStoryWithImages, timestamp);
     }
 
-    private static Story prepareStory(String storyType) {
-        var chatModel = CHAT_MODEL_BUILDER.get()
-            .temperature(1.5f)
-            .responseSchema(Schema.newBuilder()
+    /**
+     * Writes and illustrates a story, without saving the complete story.
+     *
+     * @param draft the draft updated as the story progresses, or null when not publishing progressively
+     */
+    private Story illustrateStory(String storyKey, StoryType storyType, StoryDraft draft) throws Exception {
+        System.out.println("Story type: " + yellow(storyType.name()));
+
+        Story story = null;
+        List<Story.Chapter> newChaptersWithImages;
+
+        try {
+            Optional<Story> checkpointedStory = checkpoints.load(storyKey + "/story", Story.class);
+            checkpointedStory.ifPresent(resumed -> System.out.println("Resuming story from checkpoint: " + blue(resumed.title)));
+
+            if (streaming && checkpointedStory.isEmpty()) {
+                try (ChapterExecutor.Batch<Story.Chapter> batch = chapterExecutor.newBatch()) {
+                    story = metrics.time(Stage.STORY, () -> prepareStoryStreaming(storyType.explanation, chapter -> {
+                        System.out.println(green(chapter.chapterTitle) + "\n");
+                        System.out.println(chapter.chapterContent + "\n");
+                        int index = batch.size();
+                        batch.submit(() -> publishChapter(draft, index, illustrateChapter(storyKey, chapter, null)));
+                    }));
+                    checkpoints.save(storyKey + "/story", GSON.toJson(story));
+                    System.out.println(blue(story.title) + "\n");
+                    reportStreamedDuplicate(story);
+                    publishText(storyKey, draft, story);
+
+                    // in case the incremental parser missed a chapter, the complete story is the reference
+                    List<Story.Chapter> chapters = story.chapters;
+                    IntStream.range(batch.size(), chapters.size())
+                        .forEach(index -> batch.submit(() ->
+                            publishChapter(draft, index, illustrateChapter(storyKey, chapters.get(index), null))));
+
+                    newChaptersWithImages = batch.awaitAll();
+                }
+            } else {
+                story = checkpoints.getOrCompute(storyKey + "/story", Story.class,
+                    () -> metrics.time(Stage.STORY, () -> prepareOriginalStory(storyType.explanation)));
+
+                System.out.println(blue(story.title) + "\n");
+                story.chapters().forEach(chapter -> {
+                    System.out.println(green(chapter.chapterTitle) + "\n");
+                    System.out.println(chapter.chapterContent + "\n");
+                });
+                publishText(storyKey, draft, story);
+
+                Story completeStory = story;
+                List<String> imagePrompts = checkpoints.getOrCompute(storyKey + "/image-prompts", STRING_LIST,
+                    () -> metrics.time(Stage.IMAGE_PROMPTS, () -> prepareImagePrompts(completeStory)));
+
+                newChaptersWithImages = chapterExecutor.mapInOrder(
+                    IntStream.range(0, story.chapters.size()).boxed().toList(),
+                    index -> publishChapter(draft, index,
+                        illustrateChapter(storyKey, completeStory.chapters.get(index), imagePrompts.get(index))));
+            }
+        } catch (Exception e) {
+            // a story which won't be saved mustn't keep similar stories out of the duplicate index
+            if (story != null) {
+                forgetOriginal(story);
+            }
+            throw e;
+        }
+
+        return new Story(story.title, newChaptersWithImages);
+    }
+
+    /**
+     * Runs the stages of a chapter as a small dependency graph:
+     * the image prompt, image generation, judging and image variants stages depend on each other,
+     * whereas the legibility stage only needs the chapter content, so it runs alongside them.
+     * <p>
+     * The checkpoints of a chapter are keyed by a hash of its content, rather than its position,
+     * so that the checkpoints of a story which was streamed but never completed aren't mistaken for another story's.
+     *
+     * @param batchedImagePrompt the image prompt prepared along with the other chapters' prompts,
+     *                           or null to prepare it for this chapter only
+     */
+    private Story.Chapter illustrateChapter(String storyKey, Story.Chapter chapter, String batchedImagePrompt) {
+        System.out.println("Generating images for: " + green(chapter.chapterTitle) + "\n");
+        var timeline = new StageTimeline(green(chapter.chapterTitle));
+        String chapterKey = storyKey + "/chapter-" + contentHash(chapter.chapterTitle + "\n" + chapter.chapterContent);
+
+        var stages = new InterruptibleStages(stageExecutor);
+
+        CompletableFuture<String> bestImageStage = stages
+            .supply(() -> timeline.time("prompt", () -> {
+                String imagePrompt = batchedImagePrompt != null ? batchedImagePrompt :
+                    checkpoints.getOrCompute(chapterKey + "/prompt", String.class,
+                        () -> metrics.time(Stage.IMAGE_PROMPT, () -> prepareImagePromptForChapter(chapter)));
+                System.out.println("Image prompt: " + yellow(imagePrompt));
+                return imagePrompt;
+            }))
+            .thenCompose(imagePrompt -> stages.supply(() -> timeline.time("images", () -> {
+                List<String> imagesForChapter = checkpoints.getOrCompute(chapterKey + "/images", STRING_LIST,
+                    () -> metrics.time(Stage.IMAGES, () -> generateImages(imagePrompt)));
+                imagesForChapter.forEach(imageUrl -> System.out.println(green(" - " + imageUrl)));
+                return imagesForChapter;
+            })))
+            .thenCompose(imagesForChapter -> stages.supply(() -> timeline.time("judge", () -> {
+                String bestImage = checkpoints.getOrCompute(chapterKey + "/best-image", String.class,
+                    () -> metrics.time(Stage.JUDGE, () -> pickBestImageForChapter(chapter.chapterContent, imagesForChapter)));
+                System.out.println("Best image: " + yellow(bestImage));
+                return bestImage;
+            })));
+
+        CompletableFuture<List<Story.Chapter.ImageVariant>> imageVariantsStage = bestImageStage
+            .thenCompose(bestImage -> stages.supply(() -> timeline.time("variants", () -> {
+                List<Story.Chapter.ImageVariant> variants = checkpoints.getOrCompute(chapterKey + "/image-variants", IMAGE_VARIANT_LIST,
+                    () -> metrics.time(Stage.IMAGE_VARIANTS, () -> createImageVariants(bestImage)));
+                variants.forEach(variant -> System.out.println(green(" - " + variant.width() + "x" + variant.height() + " " + variant.uri())));
+                return variants;
+            })));
+
+        // the story generated with paragraphs doesn't need a second pass
+        CompletableFuture<List<String>> legibilityStage = !legibilityPass ?
+            CompletableFuture.completedFuture(chapter.paragraphs) :
+            stages.supply(() -> timeline.time("legibility", () -> {
+                String moreLegibleChapter = checkpoints.getOrCompute(chapterKey + "/legible-content", String.class,
+                    () -> metrics.time(Stage.LEGIBILITY, () -> improveChapterLegibility(chapter.chapterContent)));
+                System.out.println("Update chapter's content: " + green(chapter.chapterTitle) + "\n\n" + moreLegibleChapter);
+                return List.of(moreLegibleChapter.split("\n\\s*\n"));
+            }));
+
+        CompletableFuture<Story.Chapter> chapterStage = imageVariantsStage.thenCombine(legibilityStage,
+            (variants, paragraphs) -> new Story.Chapter(chapter.chapterTitle, String.join("\n\n", paragraphs), paragraphs,
+                bestImageStage.join(), variants));
+
+        try {
+            Story.Chapter illustratedChapter = chapterStage.get();
+            System.out.println(timeline.render());
+            return illustratedChapter;
+        } catch (InterruptedException e) {
+            stages.cancelAll();
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Processing of chapter cancelled: " + chapter.chapterTitle);
+        } catch (ExecutionException e) {
+            stages.cancelAll();
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private static final java.lang.reflect.Type STRING_LIST = TypeToken.getParameterized(List.class, String.class).getType();
+    private static final java.lang.reflect.Type IMAGE_VARIANT_LIST =
+        TypeToken.getParameterized(List.class, Story.Chapter.ImageVariant.class).getType();
+
+    static String contentHash(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void printBatchReport(List<StoryOutcome> outcomes) {
+        long succeeded = outcomes.stream().filter(StoryOutcome::succeeded).count();
+        System.out.println("\n" + blue("Batch report: " + succeeded + "/" + outcomes.size() + " stories generated"));
+        outcomes.forEach(outcome -> {
+            String duration = outcome.duration.toSeconds() + "s";
+            if (outcome.succeeded()) {
+                System.out.println(green(" ✔ #" + outcome.storyNumber) + " " + outcome.storyType + " — " +
+                    outcome.title + " (" + duration + ", saved at " + outcome.savedAt + ")");
+            } else {
+                System.out.println(red(" ✘ #" + outcome.storyNumber) + " " + outcome.storyType + " — " +
+                    outcome.failure + " (" + duration + ")");
+            }
+        });
+    }
+
+    private static final Schema STORY_SCHEMA = Schema.newBuilder()
+        .setType(Type.OBJECT)
+        .putProperties("title", Schema.newBuilder()
+            .setDescription("The title of the story")
+            .setType(Type.STRING)
+            .build())
+        .putProperties("chapters", Schema.newBuilder()
+            .setDescription("The list of 5 chapters")
+            .setType(Type.ARRAY)
+            .setItems(Schema.newBuilder()
+                .setDescription("A chapter with a title, and its content")
+                .setType(Type.OBJECT)
+                .putProperties("chapterTitle", Schema.newBuilder()
+                    .setType(Type.STRING)
+                    .setDescription("The title of the chapter")
+                    .build())
+                .putProperties("chapterContent", Schema.newBuilder()
+                    .setType(Type.STRING)
+                    .setDescription("The content of the chapter, made of 20 sentences")
+                    .build())
+                .addAllRequired(List.of("chapterTitle", "chapterContent"))
+                .build())
+            .build())
+        .addAllRequired(List.of("title", "chapters"))
+        .build();
+
+    /**
+     * Like {@link #STORY_SCHEMA}, with the content of each chapter split into paragraphs,
+     * rather than split in a second call to the model.
+     */
+    private static final Schema STORY_PARAGRAPHS_SCHEMA = Schema.newBuilder()
+        .setType(Type.OBJECT)
+        .putProperties("title", Schema.newBuilder()
+            .setDescription("The title of the story")
+            .setType(Type.STRING)
+            .build())
+        .putProperties("chapters", Schema.newBuilder()
+            .setDescription("The list of 5 chapters")
+            .setType(Type.ARRAY)
+            .setItems(Schema.newBuilder()
+                .setDescription("A chapter with a title, and its content split into paragraphs")
                 .setType(Type.OBJECT)
-                .putProperties("title", Schema.newBuilder()
-                    .setDescription("The title of the story")
+                .putProperties("chapterTitle", Schema.newBuilder()
                     .setType(Type.STRING)
+                    .setDescription("The title of the chapter")
                     .build())
-                .putProperties("chapters", Schema.newBuilder()
-                    .setDescription("The list of 5 chapters")
+                .putProperties("paragraphs", Schema.newBuilder()
                     .setType(Type.ARRAY)
+                    .setDescription("The paragraphs of the content of the chapter, made of 20 sentences in total")
                     .setItems(Schema.newBuilder()
-                        .setDescription("A chapter with a title, and its content")
-                        .setType(Type.OBJECT)
-                        .putProperties("chapterTitle", Schema.newBuilder()
-                            .setType(Type.STRING)
-                            .setDescription("The title of the chapter")
-                            .build())
-                        .putProperties("chapterContent", Schema.newBuilder()
-                            .setType(Type.STRING)
-                            .setDescription("The content of the chapter, made of 20 sentences")
-                            .build())
-                        .addAllRequired(List.of("chapterTitle", "chapterContent"))
+                        .setType(Type.STRING)
+                        .setDescription("A paragraph of a few sentences")
                         .build())
                     .build())
-                .addAllRequired(List.of("title", "chapters"))
+                .addAllRequired(List.of("chapterTitle", "paragraphs"))
                 .build())
-            .build();
+            .build())
+        .addAllRequired(List.of("title", "chapters"))
+        .build();
 
-        Response<AiMessage> response = chatModel.generate(
+    /**
+     * @param avoidedTitle the title of a past story the new story was too similar to, or null
+     */
+    private static List<ChatMessage> storyMessages(String storyType, String avoidedTitle) {
+        return List.of(
             SystemMessage.from("""
                 You are a creative fiction author, and your role is to write stories.
                 You write a story as requested by the user.
@@ -326,158 +765,377 @@ public class ExplicitStoryGeneratorAgent {
                 Each chapter has a title, is split into paragraphs, \
                 and is at least 20 sentences long.
                 """),
-            UserMessage.from(storyType)
+            UserMessage.from(avoidedTitle == null ? storyType :
+                storyType + "\n\nThe story must be different from the story titled \"" + avoidedTitle + "\".")
         );
+    }
+
+    /**
+     * Calls the chat model the stage is routed to, unless the response cache already has the response to those messages.
+     * A response without any text, for example when blocked by the safety filters, counts as a failed call.
+     * A call cancelled because its hedge won doesn't count against the model.
+     */
+    private Response<AiMessage> chat(Stage stage, Float temperature, Schema responseSchema, List<ChatMessage> messages) {
+        String model = router.route(stage);
+        return responseCache.chat(model, temperature, responseSchema, messages, () ->
+            resilience.call(stage, chatLimiter, true, () -> {
+                long start = System.nanoTime();
+                ModelRouter.Outcome outcome = ModelRouter.Outcome.FAILED;
+                try {
+                    Response<AiMessage> response = models.chat(model, temperature, responseSchema, messages);
+                    metrics.recordTokens(stage, response.tokenUsage());
+                    if (response.content() == null || response.content().text() == null) {
+                        String failure = "Empty response for " + stage.label + ", finish reason: " + response.finishReason();
+                        throw new ResilientCalls.ModelCallException(response.finishReason() == FinishReason.CONTENT_FILTER ?
+                            ResilientCalls.FailureKind.SAFETY : ResilientCalls.FailureKind.TRANSIENT, failure);
+                    }
+                    outcome = ModelRouter.Outcome.SUCCEEDED;
+                    return response;
+                } catch (RuntimeException e) {
+                    outcome = ModelRouter.Outcome.of(e);
+                    throw e;
+                } finally {
+                    router.record(stage, model, System.nanoTime() - start, outcome);
+                }
+            }));
+    }
+
+    /**
+     * Prepares a story, and prepares it again while it's a near-duplicate of a past story,
+     * before paying for its images, the story being rejected after a few attempts.
+     */
+    private Story prepareOriginalStory(String storyType) throws Exception {
+        DuplicateStoryIndex index = duplicateIndex();
+        Story story = prepareStory(storyType, null);
+        if (index == null) {
+            return story;
+        }
+        for (int attempt = 1; ; attempt++) {
+            Optional<DuplicateStoryIndex.Match> match = index.addIfOriginal(story);
+            if (match.isEmpty()) {
+                return story;
+            }
+            String duplicate = String.format("\"%s\" is a near-duplicate of \"%s\" (%.0f%% similar)",
+                story.title, match.get().title(), match.get().similarity() * 100);
+            if (attempt > duplicateRetries) {
+                throw new IllegalStateException("Rejected story: " + duplicate);
+            }
+            System.out.println(red(duplicate) + ", preparing another story...");
+            story = prepareStory(storyType, match.get().title());
+        }
+    }
+
+    /**
+     * The duplicate index, opened on the first story, as it may need to read all the saved stories.
+     */
+    private synchronized DuplicateStoryIndex duplicateIndex() throws Exception {
+        if (duplicateIndex == null && duplicateDetection) {
+            duplicateIndex = DuplicateStoryIndex.open(duplicateThreshold, storyStore);
+        }
+        return duplicateIndex;
+    }
+
+    /**
+     * Saves a story, and then its signature in the duplicate index,
+     * so that the index doesn't keep similar stories out for a story which wasn't saved.
+     */
+    private <T> T saveOriginal(Story story, RunMetrics.StageWork<T, Exception> save) throws Exception {
+        T saved;
+        try {
+            saved = save.get();
+        } catch (Exception e) {
+            forgetOriginal(story);
+            throw e;
+        }
+        DuplicateStoryIndex index = duplicateIndex();
+        if (index != null) {
+            index.saveAccepted(story);
+        }
+        return saved;
+    }
+
+    private void forgetOriginal(Story story) throws Exception {
+        DuplicateStoryIndex index = duplicateIndex();
+        if (index != null) {
+            index.forget(story);
+        }
+    }
+
+    private Story prepareStory(String storyType, String avoidedTitle) {
+        Response<AiMessage> response = chat(Stage.STORY, 1.5f, storySchema, storyMessages(storyType, avoidedTitle));
 
         String responseText = response.content().text();
-        return GSON.fromJson(responseText, Story.class);
+        return GSON.fromJson(responseText, Story.class).withContentFromParagraphs();
     }
 
-    private static String prepareImagePromptForChapter(Story.Chapter chapter) {
-        record ImagePrompt(
-            String imagePrompt
-        ) {}
+    /**
+     * Streams the story from the model, and hands over each chapter to <code>onChapter</code>
+     * as soon as its JSON object is complete, while the following chapters are still being written.
+     * The returned story is parsed from the complete response, like in {@link #prepareStory(String)}.
+     */
+    private Story prepareStoryStreaming(String storyType, Consumer<Story.Chapter> onChapter) {
+        AtomicInteger streamedChapters = new AtomicInteger();
+
+        // a cached response isn't streamed, its chapters are all processed once the story is returned
+        List<ChatMessage> messages = storyMessages(storyType, null);
+        String model = router.route(Stage.STORY);
+        Response<AiMessage> response = responseCache.chat(model, 1.5f, storySchema, messages, () ->
+            resilience.call(Stage.STORY, chatLimiter, false, () -> {
+                long start = System.nanoTime();
+                var parser = new StreamingChapterParser(chapterJson -> {
+                    streamedChapters.incrementAndGet();
+                    onChapter.accept(GSON.fromJson(chapterJson, Story.Chapter.class).withContentFromParagraphs());
+                });
+                CompletableFuture<Response<AiMessage>> streamedResponse = new CompletableFuture<>();
+
+                models.streamChat(model, 1.5f, storySchema, messages, new StreamingResponseHandler<>() {
+                    @Override
+                    public void onNext(String token) {
+                        try {
+                            parser.feed(token);
+                        } catch (RuntimeException e) {
+                            streamedResponse.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(Response<AiMessage> response) {
+                        streamedResponse.complete(response);
+                    }
 
-        Response<AiMessage> imagePromptResponse = null;
+                    @Override
+                    public void onError(Throwable error) {
+                        streamedResponse.completeExceptionally(error);
+                    }
+                });
 
-        try (var chatModel = CHAT_MODEL_BUILDER.get()
-            .temperature(1.5f)
-            .responseSchema(Schema.newBuilder()
+                try {
+                    Response<AiMessage> completeResponse = streamedResponse.get();
+                    metrics.recordTokens(Stage.STORY, completeResponse.tokenUsage());
+                    router.record(Stage.STORY, model, System.nanoTime() - start, ModelRouter.Outcome.SUCCEEDED);
+                    return completeResponse;
+                } catch (InterruptedException e) {
+                    streamedResponse.cancel(true);
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Story stream cancelled");
+                } catch (ExecutionException e) {
+                    router.record(Stage.STORY, model, System.nanoTime() - start, ModelRouter.Outcome.of(e.getCause()));
+                    // chapters already handed over are being illustrated, a new story can't replace them
+                    if (parser.chapterCount() > 0) {
+                        throw new ResilientCalls.NonRetryableException(
+                            "Story stream failed after " + parser.chapterCount() + " chapters", e.getCause());
+                    }
+                    throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(e.getCause());
+                }
+            }));
+
+        Story story = GSON.fromJson(response.content().text(), Story.class).withContentFromParagraphs();
+        System.out.println("Streamed " + streamedChapters.get() + " chapters out of " + story.chapters.size());
+        return story;
+    }
+
+    private static final Schema IMAGE_PROMPT_SCHEMA = Schema.newBuilder()
+        .setType(Type.OBJECT)
+        .putProperties("imagePrompt", Schema.newBuilder()
+            .setDescription("An image generation prompt for this chapter")
+            .setType(Type.STRING)
+            .build())
+        .addAllRequired(List.of("imagePrompt"))
+        .build();
+
+    private static final String IMAGE_PROMPT_PREFIX = "A cartoon of ";
+
+    private static final Schema IMAGE_PROMPTS_SCHEMA = Schema.newBuilder()
+        .setType(Type.OBJECT)
+        .putProperties("imagePrompts", Schema.newBuilder()
+            .setDescription("The image generation prompts, one for each chapter")
+            .setType(Type.ARRAY)
+            .setItems(Schema.newBuilder()
                 .setType(Type.OBJECT)
+                .putProperties("chapterIndex", Schema.newBuilder()
+                    .setDescription("The index of the chapter, starting at 0")
+                    .setType(Type.INTEGER)
+                    .build())
                 .putProperties("imagePrompt", Schema.newBuilder()
                     .setDescription("An image generation prompt for this chapter")
                     .setType(Type.STRING)
                     .build())
-                .addAllRequired(List.of("imagePrompt"))
+                .addAllRequired(List.of("chapterIndex", "imagePrompt"))
                 .build())
-            .build()) {
+            .build())
+        .addAllRequired(List.of("imagePrompts"))
+        .build();
 
-            imagePromptResponse = chatModel.generate(
+    /**
+     * Prepares the image prompts of all the chapters in a single call, sending the story once.
+     *
+     * @return the image prompt of each chapter, in the order of the chapters,
+     * or null for the chapters without a valid prompt, which are then prompted for one by one
+     */
+    private List<String> prepareImagePrompts(Story story) {
+        record ChapterImagePrompt(
+            Integer chapterIndex,
+            String imagePrompt
+        ) {}
+        record ImagePrompts(
+            List<ChapterImagePrompt> imagePrompts
+        ) {}
+
+        StringBuilder chapters = new StringBuilder();
+        for (int index = 0; index < story.chapters.size(); index++) {
+            Story.Chapter chapter = story.chapters.get(index);
+            chapters.append("### Chapter index ").append(index).append(": ").append(chapter.chapterTitle).append("\n\n")
+                .append(chapter.chapterContent).append("\n\n");
+        }
+
+        String[] prompts = new String[story.chapters.size()];
+        try {
+            Response<AiMessage> imagePromptsResponse = chat(Stage.IMAGE_PROMPTS, 1.5f, IMAGE_PROMPTS_SCHEMA, List.of(
                 SystemMessage.from("""
                     You are an expert artist who masters crafting great prompts for image generation models, to illustrate short stories.
-                    When given a short story, reply with a concise prompt that could be used to create an illustration with the Imagen 3 model.
-                    Don't use any flags like those used with MidJourney. Just answer with the short concise text prompt.
-                    
-                    Your answer MUST start with "A cartoon of ", as we want to use cartoon or comics illustrations.
-                    
-                    The user gives you the following image prompt for the chapter to illustrate:
+                    When given the chapters of a short story, reply with a concise prompt for each chapter, \
+                    that could be used to create an illustration of the chapter with the Imagen 3 model.
+                    Don't use any flags like those used with MidJourney. Just answer with the short concise text prompts.
+
+                    Each prompt MUST start with "A cartoon of ", as we want to use cartoon or comics illustrations.
+
+                    The user gives you the following chapters to illustrate, with their index:
                     """),
-                UserMessage.from(chapter.chapterContent)
-            );
-        } catch (IOException e) {
-            System.err.println("Exception: " + e.getMessage());
+                UserMessage.from(chapters.toString())
+            ));
+
+            ImagePrompts imagePrompts = GSON.fromJson(imagePromptsResponse.content().text(), ImagePrompts.class);
+            if (imagePrompts != null && imagePrompts.imagePrompts != null) {
+                for (ChapterImagePrompt entry : imagePrompts.imagePrompts) {
+                    if (entry != null && entry.chapterIndex != null
+                        && entry.chapterIndex >= 0 && entry.chapterIndex < prompts.length
+                        && prompts[entry.chapterIndex] == null
+                        && entry.imagePrompt != null && entry.imagePrompt.startsWith(IMAGE_PROMPT_PREFIX)) {
+                        prompts[entry.chapterIndex] = entry.imagePrompt;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // a cancelled story mustn't go on preparing the prompts one chapter at a time
+            if (ResilientCalls.isCancellation(e) || Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            System.out.println(red("Couldn't prepare the image prompts of all the chapters at once: " + e.getMessage()));
+        }
+
+        long missingPrompts = Arrays.stream(prompts).filter(Objects::isNull).count();
+        if (missingPrompts > 0) {
+            System.out.println(yellow(missingPrompts + " chapters without a valid image prompt") + ", preparing them one by one");
         }
+        return Arrays.asList(prompts);
+    }
+
+    private String prepareImagePromptForChapter(Story.Chapter chapter) {
+        record ImagePrompt(
+            String imagePrompt
+        ) {}
+
+        Response<AiMessage> imagePromptResponse = chat(Stage.IMAGE_PROMPT, 1.5f, IMAGE_PROMPT_SCHEMA, List.of(
+            SystemMessage.from("""
+                You are an expert artist who masters crafting great prompts for image generation models, to illustrate short stories.
+                When given a short story, reply with a concise prompt that could be used to create an illustration with the Imagen 3 model.
+                Don't use any flags like those used with MidJourney. Just answer with the short concise text prompt.
+                
+                Your answer MUST start with "A cartoon of ", as we want to use cartoon or comics illustrations.
+                
+                The user gives you the following image prompt for the chapter to illustrate:
+                """),
+            UserMessage.from(chapter.chapterContent)
+        ));
 
         ImagePrompt imagePrompt = GSON.fromJson(imagePromptResponse.content().text(), ImagePrompt.class);
+        if (imagePrompt == null || imagePrompt.imagePrompt == null || imagePrompt.imagePrompt.isBlank()) {
+            throw new IllegalStateException("No image prompt in the response for chapter: " + chapter.chapterTitle);
+        }
         return imagePrompt.imagePrompt;
     }
 
-    private static List<String> generateImages(String imagePrompt) {
-        VertexAiImageModel imageModel = VertexAiImageModel.builder()
-            .project(GCP_PROJECT_ID)
-            .location(GCP_LOCATION)
-            .endpoint(GCP_VERTEXAI_ENDPOINT)
-            .modelName(IMAGE_MODEL_NAME)
-            .publisher("google")
-            .withPersisting()
-            .persistToCloudStorage("gs://genai-java-demos.firebasestorage.app")
-            .build();
+    private List<String> generateImages(String imagePrompt) {
+        return responseCache.images(IMAGE_MODEL_NAME, imagePrompt, 4, () -> {
+            List<String> images;
+            try {
+                images = resilience.call(Stage.IMAGES, imageLimiter, true, () -> callImageModel(imagePrompt));
+            } catch (RuntimeException e) {
+                // Imagen mostly refuses prompts with children, which the prompt can steer away from
+                if (ResilientCalls.FailureKind.classify(e) != ResilientCalls.FailureKind.SAFETY) {
+                    throw e;
+                }
+                System.out.println(red(e.getMessage()) + ", regenerating images...");
+                metrics.recordRetry(Stage.IMAGES);
+                images = resilience.call(Stage.IMAGES, imageLimiter, true, () ->
+                    callImageModel(imagePrompt + "\nDon't generate images with children, only adults."));
+            }
+            metrics.recordImages(Stage.IMAGES, images.size());
+            return images;
+        });
+    }
 
-        Response<List<Image>> imageResponse = null;
-        try {
-            imageResponse = imageModel.generate(imagePrompt, 4);
-        } catch (Exception e) {
-            System.out.println(red(e.getMessage()) + ", regenerating images...");
-            imageResponse = imageModel.generate(imagePrompt + "\nDon't generate images with children, only adults.", 4);
-        }
+    private List<String> callImageModel(String imagePrompt) {
+        metrics.recordModelCall(Stage.IMAGES, IMAGE_MODEL_NAME);
+        return models.generateImages(IMAGE_MODEL_NAME, imagePrompt, 4);
+    }
 
-        return imageResponse.content().stream()
-            .map(image -> image.url().toString())
-            .toList();
+    private String pickBestImageForChapter(String chapterContent, List<String> imagesForChapter) {
+        return imageJudge.pickBest(chapterContent, imagesForChapter);
     }
 
-    private static String pickBestImageForChapter(String chapterContent, List<String> imagesForChapter) {
-        record BestImage(
-            String bestImage
-        ) {}
+    private List<Story.Chapter.ImageVariant> createImageVariants(String image) {
+        return imageVariants.create(image);
+    }
 
-        var chatModel = CHAT_MODEL_BUILDER.get()
-            .responseSchema(Schema.newBuilder()
-                .setType(Type.OBJECT)
-                .putProperties("bestImage", Schema.newBuilder()
-                    .setDescription("The Google Cloud Storage URI of the best image for the chapter")
-                    .setType(Type.STRING)
-                    .build())
-                .addAllRequired(List.of("bestImage"))
-                .build())
-            .build();
+    /**
+     * Splits the chapter into paragraphs with a second call to the model,
+     * keeping the original content when the model changed more than the line breaks.
+     */
+    private String improveChapterLegibility(String chapterContent) {
+        String moreLegibleChapter = chat(Stage.LEGIBILITY, 0.5f, null, List.of(UserMessage.from(
+            "Split the following text into different paragraphs, to improve legibility:\n\n" +
+                chapterContent))).content().text();
 
-        List<ChatMessage> judgementPromptMessages = new ArrayList<>();
-        judgementPromptMessages.add(SystemMessage.from("""
-                Your role is to judge which image, among several images represented by their GCS URI (Google Cloud Storage URI), \\
-                matches the best the given chapter content.
-                
-                You MUST return JUST the GCS URI of the best image, without any commentary or explanations.
-                """));
-        judgementPromptMessages.add(UserMessage.from("""
-            ### Chapter content
-            """ + chapterContent + """
-            
-            ### Image URLs in Google Cloud Storage
-            """));
-
-        for (String urIs : imagesForChapter) {
-            judgementPromptMessages.add(UserMessage.from(urIs + "\n"));
-            judgementPromptMessages.add(UserMessage.from(ImageContent.from(urIs)));
+        if (!moreLegibleChapter.replaceAll("\\s+", " ").trim().equals(chapterContent.replaceAll("\\s+", " ").trim())) {
+            System.out.println(red("The chapter was rewritten rather than split into paragraphs, keeping the original content"));
+            return chapterContent;
         }
+        return moreLegibleChapter;
+    }
 
-        Response<AiMessage> response = chatModel.generate(judgementPromptMessages);
-        BestImage bestImage = GSON.fromJson(response.content().text(), BestImage.class);
+    /**
+     * The chapters of a streamed story are illustrated as soon as they're written,
+     * so a near-duplicate can only be reported once the story is complete.
+     */
+    private void reportStreamedDuplicate(Story story) throws Exception {
+        DuplicateStoryIndex index = duplicateIndex();
+        if (index != null) {
+            index.addIfOriginal(story).ifPresent(match -> System.out.println(red(String.format(
+                "\"%s\" is a near-duplicate of \"%s\" (%.0f%% similar)", story.title, match.title(), match.similarity() * 100))));
+        }
+    }
 
-        return bestImage.bestImage;
+    /**
+     * Writes the text of the story as a draft, when publishing progressively,
+     * the ID of the draft document being checkpointed so that a resumed run updates the same draft.
+     */
+    private void publishText(String storyKey, StoryDraft draft, Story story) throws Exception {
+        if (draft == null) {
+            return;
+        }
+        String resumedDocumentId = checkpoints.<String>load(storyKey + "/draft", String.class).orElse(null);
+        String documentId = metrics.time(Stage.SAVE, () -> draft.publishText(story, resumedDocumentId));
+        checkpoints.save(storyKey + "/draft", GSON.toJson(documentId));
+        System.out.println("Draft saved in Firestore: " + yellow(documentId) + "\n");
     }
 
-    private static String improveChapterLegibility(String chapterContent) {
-        var chatModel = CHAT_MODEL_BUILDER.get()
-            .temperature(0.5f)
-            .build();
+    private static Story.Chapter publishChapter(StoryDraft draft, int index, Story.Chapter chapter) {
+        return draft == null ? chapter : draft.chapterIllustrated(index, chapter);
+    }
 
-        return chatModel.generate(
-            "Split the following text into different paragraphs, to improve legibility:\n\n" +
-                chapterContent);
-    }
-
-    private static Timestamp saveToFirestore(Story story) throws IOException, InterruptedException, ExecutionException {
-        FirestoreOptions firestoreOptions =
-            FirestoreOptions.getDefaultInstance().toBuilder()
-                .setProjectId(GCP_PROJECT_ID)
-                .setCredentials(GoogleCredentials.getApplicationDefault())
-                .build();
-
-        Firestore db = firestoreOptions.getService();
-
-        String title = Normalizer
-            .normalize(story.title + "-" + Math.abs(RANDOM.nextInt()), Normalizer.Form.NFD)
-            .toLowerCase()
-            .replaceAll("\\p{IsM}+", "")
-            .replaceAll("\\p{IsP}+", " ")
-            .trim()
-            .replaceAll("\\s+", "-");
-
-        WriteResult writeResult = db.collection("short-story")
-            .document(title)
-            .set(Map.of(
-                "title", story.title,
-                "createdAt", System.currentTimeMillis(),
-                "chapters", story.chapters.stream().map(chapter ->
-                    Map.of(
-                        "chapterTitle", chapter.chapterTitle,
-                        "chapterContent", chapter.chapterContent,
-                        "image", chapter.gcsURI
-                    )).toList()
-            )).get();
-
-        return writeResult.getUpdateTime();
+    private Timestamp saveToFirestore(StoryDraft draft, Story story) throws Exception {
+        return draft == null ? storyStore.save(story) : draft.publish(story);
     }
 
 
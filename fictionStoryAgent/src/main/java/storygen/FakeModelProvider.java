@@ -0,0 +1,335 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.vertexai.api.Schema;
+import com.google.gson.Gson;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.ImageContent;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import io.grpc.Status;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Local stand-in for Gemini and Imagen, to run and benchmark the pipeline without Vertex AI.
+ * <p>
+ * Chat responses are canned JSON documents following the requested response schema,
+ * and images are small PNG files written to a local directory.
+ * Each call sleeps according to a configurable latency distribution,
+ * which can be scaled down to run many stories quickly, and can fail with simulated errors to exercise retries.
+ */
+class FakeModelProvider implements ModelProvider {
+
+    private static final Gson GSON = new Gson();
+
+    private static final List<String> WORDS = List.of(
+        "the", "starship", "drifted", "beyond", "a", "silent", "nebula", "while", "the", "crew",
+        "argued", "about", "an", "ancient", "signal", "that", "nobody", "could", "decode", "yet");
+
+    private final LatencyDistribution chatLatency;
+    private final LatencyDistribution imageLatency;
+    private final double latencyScale;
+    private final double failureRate;
+    private final Path imageDirectory;
+    private final Random random;
+
+    private final AtomicLong chatCalls = new AtomicLong();
+    private final AtomicLong imageCalls = new AtomicLong();
+    private final AtomicLong imageCounter = new AtomicLong();
+    /** A few pre-encoded PNG images, so that simulated image calls don't spend their time encoding images */
+    private final List<byte[]> pngImages;
+
+    /**
+     * @param failureRate the probability of a call failing with a simulated quota, safety or transient error
+     */
+    FakeModelProvider(LatencyDistribution chatLatency, LatencyDistribution imageLatency, double latencyScale,
+                      double failureRate, Path imageDirectory, long seed) {
+        this.chatLatency = chatLatency;
+        this.imageLatency = imageLatency;
+        this.latencyScale = latencyScale;
+        this.failureRate = failureRate;
+        this.imageDirectory = imageDirectory;
+        this.random = new Random(seed);
+        this.pngImages = IntStream.range(0, 8).mapToObj(i -> encodePng(new Color(random.nextInt(0xFFFFFF)))).toList();
+    }
+
+    static FakeModelProvider fromOptions(GeneratorOptions options) {
+        try {
+            return new FakeModelProvider(
+                LatencyDistribution.parse(options.fakeChatLatency),
+                LatencyDistribution.parse(options.fakeImageLatency),
+                options.fakeLatencyScale,
+                options.fakeFailureRate,
+                Files.createTempDirectory("fake-images"),
+                options.fakeSeed);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't create the directory of the fake images", e);
+        }
+    }
+
+    @Override
+    public Response<AiMessage> chat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages) {
+        chatCalls.incrementAndGet();
+        sleep(chatLatency.sample(random, latencyScale));
+        maybeFail(false);
+        return cannedResponse(responseSchema, messages);
+    }
+
+    @Override
+    public void streamChat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages,
+                           StreamingResponseHandler<AiMessage> handler) {
+        chatCalls.incrementAndGet();
+        Duration latency = chatLatency.sample(random, latencyScale);
+        boolean failing = random.nextDouble() < failureRate;
+        Thread.ofVirtual().start(() -> {
+            try {
+                Response<AiMessage> response = cannedResponse(responseSchema, messages);
+                String text = response.content().text();
+                int chunks = 20;
+                int chunkSize = Math.max(1, text.length() / chunks);
+                for (int start = 0; start < text.length(); start += chunkSize) {
+                    sleep(latency.dividedBy(chunks));
+                    handler.onNext(text.substring(start, Math.min(text.length(), start + chunkSize)));
+                    if (failing && start == 0) {
+                        throw Status.UNAVAILABLE.withDescription("simulated stream interruption").asRuntimeException();
+                    }
+                }
+                handler.onComplete(response);
+            } catch (RuntimeException e) {
+                handler.onError(e);
+            }
+        });
+    }
+
+    @Override
+    public List<String> generateImages(String modelName, String prompt, int count) {
+        imageCalls.incrementAndGet();
+        sleep(imageLatency.sample(random, latencyScale));
+        maybeFail(true);
+        return IntStream.range(0, count)
+            .mapToObj(i -> writeImage())
+            .toList();
+    }
+
+    @Override
+    public List<String> stats() {
+        return List.of("fake models: " + chatCalls.get() + " chat calls, " + imageCalls.get() + " image calls");
+    }
+
+    /**
+     * Deletes the fake images, which nothing reads once the agent is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(imageDirectory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private Response<AiMessage> cannedResponse(Schema responseSchema, List<ChatMessage> messages) {
+        String text = responseSchema == null ?
+            paragraphs(lastUserText(messages)) :
+            GSON.toJson(canned("", responseSchema, messages, 0));
+
+        int inputTokens = messages.stream().mapToInt(FakeModelProvider::estimateTokens).sum();
+        return Response.from(AiMessage.from(text), new TokenUsage(inputTokens, text.length() / 4));
+    }
+
+    /**
+     * Walks the response schema to build a canned document,
+     * with a few property names getting a value that the pipeline can make sense of.
+     */
+    private Object canned(String property, Schema schema, List<ChatMessage> messages, int index) {
+        return switch (schema.getType()) {
+            case OBJECT -> {
+                Map<String, Object> object = new LinkedHashMap<>();
+                schema.getPropertiesMap().forEach((name, propertySchema) ->
+                    object.put(name, canned(name, propertySchema, messages, index)));
+                yield object;
+            }
+            case ARRAY -> IntStream.range(0, arrayLength(property))
+                .mapToObj(i -> canned(property, schema.getItems(), messages, i))
+                .toList();
+            case INTEGER -> switch (property) {
+                case "bestImage", "winner" -> 1;
+                case "score" -> 1 + random.nextInt(10);
+                default -> index;
+            };
+            case NUMBER -> random.nextInt(10);
+            case BOOLEAN -> true;
+            default -> cannedText(property, messages, index);
+        };
+    }
+
+    private int arrayLength(String property) {
+        return switch (property) {
+            case "chapters", "imagePrompts" -> 5;
+            case "paragraphs" -> 4;
+            default -> 3;
+        };
+    }
+
+    private String cannedText(String property, List<ChatMessage> messages, int index) {
+        return switch (property) {
+            case "title" -> "The " + sentence(3).replace(".", "");
+            case "chapterTitle" -> "Chapter " + (index + 1) + ": " + sentence(4).replace(".", "");
+            case "chapterContent" -> IntStream.range(0, 20)
+                .mapToObj(i -> sentence(12))
+                .collect(Collectors.joining(" "));
+            case "paragraphs" -> IntStream.range(0, 5)
+                .mapToObj(i -> sentence(12))
+                .collect(Collectors.joining(" "));
+            case "imagePrompt" -> "A cartoon of " + sentence(10);
+            case "bestImage" -> imageUris(messages).stream().findFirst().orElse("");
+            default -> sentence(8);
+        };
+    }
+
+    private String sentence(int wordCount) {
+        String words = IntStream.range(0, wordCount)
+            .mapToObj(i -> WORDS.get(random.nextInt(WORDS.size())))
+            .collect(Collectors.joining(" "));
+        return Character.toUpperCase(words.charAt(0)) + words.substring(1) + ".";
+    }
+
+    private static String paragraphs(String text) {
+        String content = text.contains("\n\n") ? text.substring(text.indexOf("\n\n") + 2) : text;
+        String[] sentences = content.split("(?<=\\.) ");
+        List<String> paragraphs = new ArrayList<>();
+        for (int i = 0; i < sentences.length; i += 5) {
+            paragraphs.add(String.join(" ", List.of(sentences).subList(i, Math.min(sentences.length, i + 5))));
+        }
+        return String.join("\n\n", paragraphs);
+    }
+
+    private String writeImage() {
+        Path imageFile = imageDirectory.resolve("image-" + imageCounter.incrementAndGet() + ".png");
+        try {
+            Files.write(imageFile, pngImages.get(random.nextInt(pngImages.size())));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write the fake image " + imageFile, e);
+        }
+        return imageFile.toUri().toString();
+    }
+
+    private static byte[] encodePng(Color color) {
+        BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 512, 512);
+        graphics.setColor(color.darker());
+        graphics.fillOval(128, 128, 256, 256);
+        graphics.dispose();
+        try {
+            var png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            return png.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't encode a fake image", e);
+        }
+    }
+
+    private static String lastUserText(List<ChatMessage> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (messages.get(i) instanceof UserMessage userMessage) {
+                for (Content content : userMessage.contents()) {
+                    if (content instanceof TextContent textContent) {
+                        return textContent.text();
+                    }
+                }
+            }
+        }
+        return "";
+    }
+
+    private static List<String> imageUris(List<ChatMessage> messages) {
+        List<String> uris = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            if (message instanceof UserMessage userMessage) {
+                for (Content content : userMessage.contents()) {
+                    if (content instanceof ImageContent imageContent && imageContent.image().url() != null) {
+                        uris.add(imageContent.image().url().toString());
+                    }
+                }
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Rough token count: about 4 characters per token, and 258 tokens per image, like Gemini.
+     */
+    private static int estimateTokens(ChatMessage message) {
+        return switch (message) {
+            case SystemMessage systemMessage -> systemMessage.text().length() / 4;
+            case UserMessage userMessage -> userMessage.contents().stream()
+                .mapToInt(content -> content instanceof TextContent textContent ? textContent.text().length() / 4 : 258)
+                .sum();
+            case AiMessage aiMessage -> aiMessage.text().length() / 4;
+            default -> 0;
+        };
+    }
+
+    private void maybeFail(boolean imageCall) {
+        if (random.nextDouble() < failureRate) {
+            switch (random.nextInt(imageCall ? 3 : 2)) {
+                case 0 -> throw Status.UNAVAILABLE.withDescription("simulated transient failure").asRuntimeException();
+                case 1 -> throw Status.RESOURCE_EXHAUSTED.withDescription("simulated quota exhaustion").asRuntimeException();
+                default -> throw new ResilientCalls.ModelCallException(ResilientCalls.FailureKind.SAFETY,
+                    "Simulated safety filter: the prompt was blocked");
+            }
+        }
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted during a simulated model call");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Saves the checkpoints of a run as one small JSON file per stage output,
+ * in a directory named after the run ID.
+ * <p>
+ * Files are written to a temporary file first, then atomically renamed,
+ * so a run killed in the middle of a write never leaves a truncated checkpoint behind.
+ */
+class FileCheckpointStore implements CheckpointStore {
+
+    private final Path runDirectory;
+
+    FileCheckpointStore(Path directory, String runId) {
+        this.runDirectory = directory.resolve(runId);
+    }
+
+    @Override
+    public Optional<String> load(String key) {
+        try {
+            return Optional.of(Files.readString(file(key), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read checkpoint " + key, e);
+        }
+    }
+
+    @Override
+    public void save(String key, String json) {
+        Path file = file(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.writeString(temporaryFile, json, StandardCharsets.UTF_8);
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write checkpoint " + key, e);
+        }
+    }
+
+    private Path file(String key) {
+        return runDirectory.resolve(key + ".json");
+    }
+
+    @Override
+    public String toString() {
+        return "checkpoints in " + runDirectory;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteResult;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Saves stories in the <code>short-story</code> Firestore collection read by the website,
+ * and maintains the {@link StoryIndex} the website navigates with.
+ * When the <code>FIRESTORE_EMULATOR_HOST</code> environment variable is set,
+ * the Firestore client talks to the local emulator instead.
+ */
+class FirestoreStoryStore implements StoryStore {
+
+    private static final Random RANDOM = new Random();
+
+    private final Supplier<Firestore> firestore;
+
+    FirestoreStoryStore(Supplier<Firestore> firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public Timestamp save(Story story) throws Exception {
+        return publish(StoryStore.documentId(story.title(), RANDOM), story);
+    }
+
+    @Override
+    public void saveDraft(String documentId, Story story) throws Exception {
+        firestore.get().collection(COLLECTION)
+            .document(documentId)
+            .set(StoryStore.toDraftDocument(story))
+            .get();
+    }
+
+    @Override
+    public Timestamp publish(String documentId, Story story) throws Exception {
+        Firestore db = firestore.get();
+        long createdAt = System.currentTimeMillis();
+
+        WriteResult writeResult = db.collection(COLLECTION)
+            .document(documentId)
+            .set(StoryStore.toDocument(story, createdAt))
+            .get();
+
+        updateIndex(db, new StoryIndex.Entry(documentId, story.title(), createdAt));
+
+        return writeResult.getUpdateTime();
+    }
+
+    @Override
+    public List<StoredStory> publishedStories() throws Exception {
+        return firestore.get().collection(COLLECTION)
+            .orderBy("createdAt")
+            .get().get()
+            .getDocuments().stream()
+            .filter(doc -> StoryStore.isComplete(doc.getData()))
+            .map(doc -> new StoredStory(doc.getId(), doc.getData()))
+            .toList();
+    }
+
+    /** Reads every chunk of the signatures, ordered by chunk ID */
+    @Override
+    public List<DuplicateStoryIndex.Entry> duplicateIndexEntries() throws Exception {
+        List<DocumentSnapshot> documents = new ArrayList<>(firestore.get().collection(DuplicateStoryIndex.COLLECTION)
+            .get().get().getDocuments());
+        if (documents.stream().noneMatch(doc -> doc.getId().equals(DuplicateStoryIndex.META))) {
+            return null;
+        }
+        return documents.stream()
+            .filter(doc -> !doc.getId().equals(DuplicateStoryIndex.META))
+            .sorted(Comparator.comparing(DocumentSnapshot::getId))
+            .flatMap(doc -> DuplicateStoryIndex.entries(doc.getData()).stream())
+            .toList();
+    }
+
+    /** Appends to the last chunk in a transaction, as stories of a batch are saved concurrently */
+    @Override
+    public void addDuplicateIndexEntries(List<DuplicateStoryIndex.Entry> entries) throws Exception {
+        Firestore db = firestore.get();
+        CollectionReference index = db.collection(DuplicateStoryIndex.COLLECTION);
+        db.runTransaction(transaction -> {
+            DocumentSnapshot meta = transaction.get(index.document(DuplicateStoryIndex.META)).get();
+            int chunks = meta.exists() ? meta.getLong("chunks").intValue() : 0;
+            List<DuplicateStoryIndex.Entry> lastChunk = chunks == 0 ? List.of() :
+                DuplicateStoryIndex.entries(transaction.get(index.document(StoryIndex.chunkId(chunks - 1))).get().getData());
+            DuplicateStoryIndex.Update update = DuplicateStoryIndex.append(chunks, lastChunk, entries);
+            update.chunks().forEach((chunk, chunkEntries) ->
+                transaction.set(index.document(StoryIndex.chunkId(chunk)), DuplicateStoryIndex.chunkFields(chunkEntries)));
+            transaction.set(index.document(DuplicateStoryIndex.META), update.meta());
+            return null;
+        }).get();
+    }
+
+    /**
+     * Adds the story to the index, in a transaction, as stories of a batch are saved concurrently.
+     * The first time, the index is built from all the stories of the collection.
+     * A failure doesn't fail the story, which is already saved: the website falls back to querying the collection
+     * for the stories missing from the index.
+     */
+    private static void updateIndex(Firestore db, StoryIndex.Entry story) {
+        try {
+            db.runTransaction(transaction -> {
+                CollectionReference index = db.collection(StoryIndex.COLLECTION);
+                DocumentSnapshot meta = transaction.get(index.document(StoryIndex.META)).get();
+
+                StoryIndex.Update update;
+                if (!meta.exists()) {
+                    List<StoryIndex.Entry> stories = transaction.get(db.collection(COLLECTION)
+                            .orderBy("createdAt")
+                            .select("title", "createdAt"))
+                        .get().getDocuments().stream()
+                        .map(doc -> new StoryIndex.Entry(doc.getId(), doc.getString("title"), doc.getLong("createdAt")))
+                        .toList();
+                    update = StoryIndex.rebuild(stories);
+                } else {
+                    int lastChunk = meta.getLong("chunks").intValue() - 1;
+                    List<StoryIndex.Entry> lastChunkStories = lastChunk < 0 ? List.of() :
+                        StoryIndex.entries(transaction.get(index.document(StoryIndex.chunkId(lastChunk))).get().getData());
+                    update = StoryIndex.append(meta.getData(), lastChunkStories, story);
+                }
+
+                if (update != null) {
+                    update.chunks().forEach((chunk, stories) ->
+                        transaction.set(index.document(StoryIndex.chunkId(chunk)), StoryIndex.chunkFields(stories)));
+                    transaction.set(index.document(StoryIndex.META), update.meta());
+                }
+                return null;
+            }).get();
+        } catch (Exception e) {
+            System.out.println("Couldn't add the story " + story.id() + " to the story index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Saves the checkpoints of a run as one small JSON object per stage output in Cloud Storage,
+ * under a prefix named after the run ID, as the local disk of a Cloud Run task is gone when the task is retried.
+ * <p>
+ * An object only becomes visible once it's completely uploaded,
+ * so a run killed in the middle of a write never leaves a truncated checkpoint behind.
+ */
+class GcsCheckpointStore implements CheckpointStore {
+
+    private final Supplier<Storage> storage;
+    private final String bucket;
+    private final String runPrefix;
+
+    /**
+     * @param location a <code>gs://bucket/prefix</code> URI
+     */
+    GcsCheckpointStore(Supplier<Storage> storage, String location, String runId) {
+        // bucket names may contain underscores, which URI doesn't accept in a host name
+        if (!location.startsWith("gs://")) {
+            throw new IllegalArgumentException("A Cloud Storage location must start with gs://: " + location);
+        }
+        String bucketAndPrefix = location.substring("gs://".length());
+        int slash = bucketAndPrefix.indexOf('/');
+        String bucketName = slash < 0 ? bucketAndPrefix : bucketAndPrefix.substring(0, slash);
+        if (bucketName.isEmpty()) {
+            throw new IllegalArgumentException("No bucket in the Cloud Storage location: " + location);
+        }
+        String prefix = slash < 0 ? "" : bucketAndPrefix.substring(slash + 1).replaceAll("^/+|/+$", "");
+        this.storage = storage;
+        this.bucket = bucketName;
+        this.runPrefix = (prefix.isEmpty() ? "" : prefix + "/") + runId + "/";
+    }
+
+    @Override
+    public Optional<String> load(String key) {
+        Blob blob = storage.get().get(blobId(key));
+        return blob == null ? Optional.empty() : Optional.of(new String(blob.getContent(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void save(String key, String json) {
+        storage.get().create(BlobInfo.newBuilder(blobId(key))
+            .setContentType("application/json")
+            .build(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private BlobId blobId(String key) {
+        return BlobId.of(bucket, runPrefix + key + ".json");
+    }
+
+    @Override
+    public String toString() {
+        return "checkpoints in gs://" + bucket + "/" + runPrefix;
+    }
+}
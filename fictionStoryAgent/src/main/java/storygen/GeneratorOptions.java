@@ -0,0 +1,218 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * Command line options of the story generator.
+ * Options are passed as <code>--name value</code> or <code>--name=value</code>.
+ */
+class GeneratorOptions {
+
+    /** Number of stories to generate in this run */
+    int storyCount = 1;
+    /** Maximum number of stories generated at the same time */
+    int storyConcurrency = Integer.MAX_VALUE;
+    /** Type of the stories to generate, or null for a random type for each story */
+    String storyType = null;
+    /** Maximum number of concurrent calls to the Gemini chat model, across all stories */
+    int chatConcurrency = 8;
+    /** Maximum number of concurrent calls to the Imagen model, across all stories */
+    int imageConcurrency = 2;
+    /** Maximum number of chapters of a story processed at the same time */
+    int chapterParallelism = 5;
+    /** Stream the story from the model, and start illustrating each chapter as soon as it's written */
+    boolean streaming = false;
+    /** Generate chapters as plain text split into paragraphs by a second model call, rather than as paragraphs */
+    boolean legibilityPass = false;
+    /** Saves the text of a story as a draft before illustrating it, and updates the draft as each chapter gets its image */
+    boolean progressivePublishing = false;
+    /** How model responses are cached on disk, to replay them in development runs or offline tests */
+    ResponseCache.Mode cacheMode = ResponseCache.Mode.OFF;
+    /** Directory of the response cache */
+    Path cacheDirectory = Path.of(".cache", "responses");
+    /** Size of the response cache log, beyond which the least recently used responses are evicted */
+    int cacheMaxSizeMb = 256;
+    /** Use fake models and an in-memory store instead of Vertex AI and Firestore */
+    boolean offline = false;
+    /** Latency distribution of the fake chat model calls, see {@link LatencyDistribution} */
+    String fakeChatLatency = "lognormal:4s,0.4";
+    /** Latency distribution of the fake image model calls, see {@link LatencyDistribution} */
+    String fakeImageLatency = "lognormal:8s,0.3";
+    /** Factor applied to the fake latencies, to run many simulated stories quickly */
+    double fakeLatencyScale = 1.0;
+    /** Seed of the random generator of the fake models */
+    long fakeSeed = 42;
+    /** Probability of a fake model call failing with a simulated quota, safety or transient error */
+    double fakeFailureRate = 0;
+    /** Where to write the metrics of the run, in the Prometheus text format for a .prom file, as JSON otherwise */
+    Path metricsReport = null;
+    /** How the best image of a chapter is picked, see {@link ImageJudge} */
+    ImageJudge.Strategy judgeStrategy = ImageJudge.Strategy.SINGLE_SHOT;
+    /** Largest dimension of the thumbnails shown to the judge */
+    int judgeThumbnailSize = 384;
+    /** Score from which the threshold strategy picks an image without scoring the next ones */
+    int judgeScoreThreshold = 8;
+    /** Widths of the smaller variants of the chapter images, for the website, none when empty */
+    List<Integer> imageVariantWidths = List.of(320, 640, 1024);
+    /** Where to write the image variants, rather than next to the original images */
+    Path imageVariantsDirectory = null;
+    /** Chat model of the stages without a model of their own */
+    String chatModel = "gemini-1.5-pro-002";
+    /** Chat model of each stage, faster models being good enough for the simpler stages */
+    Map<Stage, String> stageModels = new EnumMap<>(Map.of(
+        Stage.IMAGE_PROMPTS, "gemini-1.5-flash-002",
+        Stage.IMAGE_PROMPT, "gemini-1.5-flash-002",
+        Stage.LEGIBILITY, "gemini-1.5-flash-002"));
+    /** Chat model a stage falls back to while its model is too slow or failing too often */
+    String fallbackModel = "gemini-1.5-flash-002";
+    /** 95th percentile latency of a stage above which it falls back, or 0 to never fall back on latency */
+    long fallbackP95Millis = 0;
+    /** Error rate of a stage above which it falls back, or 1 to never fall back on errors */
+    double fallbackErrorRate = 0.5;
+    /** Number of the last calls of a stage whose latency and error rate are tracked for routing */
+    int routingWindow = 50;
+    /** Whether near-duplicates of the past stories are detected before illustrating them */
+    boolean duplicateDetection = true;
+    /** Estimated similarity above which a story is a near-duplicate of a past story */
+    double duplicateThreshold = 0.3;
+    /** Number of times a near-duplicate story is prepared again before it's rejected */
+    int duplicateRetries = 2;
+    /** Maximum number of attempts of a model call failing with a quota or transient error */
+    int maxAttempts = 4;
+    /** Retries earned by each model call, the retries of all the calls drawing from the same budget */
+    double retryBudget = 0.2;
+    /** Sends a second identical model call when a call is slower than the 95th percentile of its stage */
+    boolean hedging = false;
+    /** Checkpoints the output of each stage under this run ID, and resumes the run when it was already started */
+    String runId = null;
+    /** A <code>gs://</code> URI or a local directory, by default in the images bucket, or in <code>.checkpoints</code> offline */
+    String checkpointLocation = null;
+
+    /** Options which don't need a value, <code>--name</code> meaning <code>--name=true</code> */
+    private static final Set<String> FLAGS = Set.of("--streaming", "--offline", "--hedging", "--legibility-pass",
+        "--progressive-publishing");
+
+    static GeneratorOptions parse(String[] args) {
+        return parse(args, (name, value) -> false);
+    }
+
+    /**
+     * @param extraOptions handles the options of another entry point, returning false for unknown options
+     */
+    static GeneratorOptions parse(String[] args, BiPredicate<String, String> extraOptions) {
+        GeneratorOptions options = new GeneratorOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            String value;
+            int equalsIndex = name.indexOf('=');
+            if (equalsIndex > 0) {
+                value = name.substring(equalsIndex + 1);
+                name = name.substring(0, equalsIndex);
+            } else if (FLAGS.contains(name)) {
+                value = "true";
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for option " + name);
+            }
+
+            switch (name) {
+                case "--count" -> options.storyCount = positiveInt(name, value);
+                case "--story-concurrency" -> options.storyConcurrency = positiveInt(name, value);
+                case "--story-type" -> options.storyType = value.trim().toUpperCase().replace('-', '_');
+                case "--chat-concurrency" -> options.chatConcurrency = positiveInt(name, value);
+                case "--image-concurrency" -> options.imageConcurrency = positiveInt(name, value);
+                case "--chapter-parallelism" -> options.chapterParallelism = positiveInt(name, value);
+                case "--streaming" -> options.streaming = Boolean.parseBoolean(value);
+                case "--legibility-pass" -> options.legibilityPass = Boolean.parseBoolean(value);
+                case "--progressive-publishing" -> options.progressivePublishing = Boolean.parseBoolean(value);
+                case "--cache-mode" -> options.cacheMode = ResponseCache.Mode.fromOption(value);
+                case "--cache-dir" -> options.cacheDirectory = Path.of(value);
+                case "--cache-max-size-mb" -> options.cacheMaxSizeMb = positiveInt(name, value);
+                case "--offline" -> options.offline = Boolean.parseBoolean(value);
+                case "--fake-chat-latency" -> options.fakeChatLatency = value;
+                case "--fake-image-latency" -> options.fakeImageLatency = value;
+                case "--fake-latency-scale" -> options.fakeLatencyScale = Double.parseDouble(value);
+                case "--fake-seed" -> options.fakeSeed = Long.parseLong(value);
+                case "--fake-failure-rate" -> options.fakeFailureRate = Double.parseDouble(value);
+                case "--metrics-report" -> options.metricsReport = Path.of(value);
+                case "--duplicate-detection" -> options.duplicateDetection = Boolean.parseBoolean(value);
+                case "--duplicate-threshold" -> options.duplicateThreshold = Double.parseDouble(value);
+                case "--duplicate-retries" -> options.duplicateRetries = nonNegativeInt(name, value);
+                case "--chat-model" -> options.chatModel = value;
+                case "--stage-models" -> Arrays.stream(value.split(",")).forEach(stageModel -> {
+                    String[] parts = stageModel.split("=", 2);
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("Expected stage=model in --stage-models, got: " + stageModel);
+                    }
+                    options.stageModels.put(Stage.fromOption(parts[0]), parts[1].trim());
+                });
+                case "--fallback-model" -> options.fallbackModel = value;
+                case "--fallback-p95-ms" -> options.fallbackP95Millis = Long.parseLong(value);
+                case "--fallback-error-rate" -> options.fallbackErrorRate = Double.parseDouble(value);
+                case "--routing-window" -> options.routingWindow = positiveInt(name, value);
+                case "--judge-strategy" -> options.judgeStrategy = ImageJudge.Strategy.fromOption(value);
+                case "--judge-thumbnail-size" -> options.judgeThumbnailSize = positiveInt(name, value);
+                case "--judge-score-threshold" -> options.judgeScoreThreshold = positiveInt(name, value);
+                case "--image-variant-widths" -> options.imageVariantWidths = value.isBlank() || value.equals("none") ?
+                    List.of() :
+                    Arrays.stream(value.split(",")).map(width -> positiveInt("--image-variant-widths", width.trim())).toList();
+                case "--image-variants-dir" -> options.imageVariantsDirectory = Path.of(value);
+                case "--max-attempts" -> options.maxAttempts = positiveInt(name, value);
+                case "--retry-budget" -> options.retryBudget = Double.parseDouble(value);
+                case "--hedging" -> options.hedging = Boolean.parseBoolean(value);
+                case "--run-id" -> options.runId = value;
+                case "--checkpoint-location" -> options.checkpointLocation = value;
+                default -> {
+                    if (!extraOptions.test(name, value)) {
+                        throw new IllegalArgumentException("Unknown option: " + name);
+                    }
+                }
+            }
+        }
+
+        return options;
+    }
+
+    static int positiveInt(String name, String value) {
+        return intAtLeast(name, value, 1);
+    }
+
+    static int nonNegativeInt(String name, String value) {
+        return intAtLeast(name, value, 0);
+    }
+
+    private static int intAtLeast(String name, String value, int minimum) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < minimum) {
+                throw new IllegalArgumentException("Option " + name + " must be at least " + minimum + ", got: " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " expects a number, got: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.vertexai.api.Schema;
+import com.google.cloud.vertexai.api.Type;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ImageContent;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.output.Response;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Picks the image which illustrates a chapter the best, among the candidates generated for it.
+ * <p>
+ * Candidates are shown to the model as downscaled JPEG thumbnails, which cost a fraction of the tokens
+ * of the full-resolution images, and are designated by their number rather than their URI,
+ * so that the choice of the model can be checked against the list of candidates.
+ * Three strategies trade judge calls and tokens for quality:
+ * <ul>
+ *     <li>single-shot: all the candidates in one call,</li>
+ *     <li>tournament: pairwise duels, the winners facing each other until one is left,</li>
+ *     <li>threshold: each candidate scored on its own, stopping at the first good enough one.</li>
+ * </ul>
+ */
+class ImageJudge {
+
+    enum Strategy {
+        SINGLE_SHOT, TOURNAMENT, THRESHOLD;
+
+        static Strategy fromOption(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * The judge model, called with a response schema and the judgement messages.
+     */
+    @FunctionalInterface
+    interface JudgeModel {
+        Response<AiMessage> chat(Schema responseSchema, List<ChatMessage> messages);
+    }
+
+    private static final Gson GSON = new Gson();
+
+    private static final Schema BEST_IMAGE_SCHEMA = integerSchema("bestImage", "The number of the best image");
+    private static final Schema DUEL_SCHEMA = integerSchema("winner", "The number of the best image, 1 or 2");
+    private static final Schema SCORE_SCHEMA = integerSchema("score", "How well the image illustrates the chapter, from 1 to 10");
+
+    private final Strategy strategy;
+    private final int thumbnailSize;
+    private final int scoreThreshold;
+    private final ImageStore imageStore;
+    private final JudgeModel model;
+    private final ExecutorService executor;
+
+    /**
+     * @param thumbnailSize the largest dimension of the thumbnails
+     * @param scoreThreshold the score from which a candidate is picked without scoring the next ones, in the threshold strategy
+     */
+    ImageJudge(Strategy strategy, int thumbnailSize, int scoreThreshold,
+               ImageStore imageStore, JudgeModel model, ExecutorService executor) {
+        this.strategy = strategy;
+        this.thumbnailSize = thumbnailSize;
+        this.scoreThreshold = scoreThreshold;
+        this.imageStore = imageStore;
+        this.model = model;
+        this.executor = executor;
+    }
+
+    String pickBest(String chapterContent, List<String> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.getFirst();
+        }
+
+        List<ImageContent> images = awaitAll(candidates.stream()
+            .map(uri -> executor.submit(() -> image(uri)))
+            .toList());
+
+        int best = switch (strategy) {
+            case SINGLE_SHOT -> singleShot(chapterContent, images);
+            case TOURNAMENT -> tournament(chapterContent, images);
+            case THRESHOLD -> scoreWithThreshold(chapterContent, images);
+        };
+        return candidates.get(best);
+    }
+
+    private int singleShot(String chapterContent, List<ImageContent> images) {
+        List<ChatMessage> messages = judgementMessages(chapterContent, """
+            Your role is to judge which image, among several numbered images, \\
+            matches the best the given chapter content.
+
+            You MUST return JUST the number of the best image.
+            """);
+        for (int i = 0; i < images.size(); i++) {
+            messages.add(UserMessage.from("Image " + (i + 1) + ":"));
+            messages.add(UserMessage.from(images.get(i)));
+        }
+
+        Integer bestImage = integerField(model.chat(BEST_IMAGE_SCHEMA, messages), "bestImage");
+        if (bestImage == null || bestImage < 1 || bestImage > images.size()) {
+            System.out.println("The judge picked an image which isn't a candidate (" + bestImage + "), keeping the first one");
+            return 0;
+        }
+        return bestImage - 1;
+    }
+
+    /**
+     * Duels of a round run concurrently, and with an odd number of contenders, the last one goes to the next round.
+     */
+    private int tournament(String chapterContent, List<ImageContent> images) {
+        List<Integer> contenders = IntStream.range(0, images.size()).boxed().toList();
+        while (contenders.size() > 1) {
+            List<Future<Integer>> duels = new ArrayList<>();
+            for (int i = 0; i + 1 < contenders.size(); i += 2) {
+                int first = contenders.get(i);
+                int second = contenders.get(i + 1);
+                duels.add(executor.submit(() -> duel(chapterContent, images, first, second)));
+            }
+            List<Integer> winners = new ArrayList<>(awaitAll(duels));
+            if (contenders.size() % 2 == 1) {
+                winners.add(contenders.getLast());
+            }
+            contenders = winners;
+        }
+        return contenders.getFirst();
+    }
+
+    private int duel(String chapterContent, List<ImageContent> images, int first, int second) {
+        List<ChatMessage> messages = judgementMessages(chapterContent, """
+            Your role is to judge which of two images matches the best the given chapter content.
+
+            You MUST return JUST the number of the best image, 1 or 2.
+            """);
+        messages.add(UserMessage.from("Image 1:"));
+        messages.add(UserMessage.from(images.get(first)));
+        messages.add(UserMessage.from("Image 2:"));
+        messages.add(UserMessage.from(images.get(second)));
+
+        Integer winner = integerField(model.chat(DUEL_SCHEMA, messages), "winner");
+        if (winner == null || (winner != 1 && winner != 2)) {
+            System.out.println("The judge didn't pick one of the two images (" + winner + "), keeping the first one");
+            return first;
+        }
+        return winner == 1 ? first : second;
+    }
+
+    private int scoreWithThreshold(String chapterContent, List<ImageContent> images) {
+        int best = 0;
+        int bestScore = -1;
+        for (int i = 0; i < images.size(); i++) {
+            List<ChatMessage> messages = judgementMessages(chapterContent, """
+                Your role is to judge how well an image illustrates the given chapter content.
+
+                You MUST return JUST a score from 1 (unrelated) to 10 (a perfect illustration).
+                """);
+            messages.add(UserMessage.from(images.get(i)));
+
+            Integer score = integerField(model.chat(SCORE_SCHEMA, messages), "score");
+            if (score == null || score < 1 || score > 10) {
+                System.out.println("The judge gave an invalid score (" + score + ") to image " + (i + 1));
+                continue;
+            }
+            if (score >= scoreThreshold) {
+                return i;
+            }
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static List<ChatMessage> judgementMessages(String chapterContent, String instructions) {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.from(instructions));
+        messages.add(UserMessage.from("""
+            ### Chapter content
+            """ + chapterContent + """
+
+            ### Images
+            """));
+        return messages;
+    }
+
+    private ImageContent image(String uri) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageStore.read(uri)));
+            if (image == null) {
+                throw new IllegalStateException("Unsupported image format: " + uri);
+            }
+
+            double scale = Math.min(1.0, (double) thumbnailSize / Math.max(image.getWidth(), image.getHeight()));
+            int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+
+            var jpeg = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, "jpg", jpeg);
+            return ImageContent.from(Base64.getEncoder().encodeToString(jpeg.toByteArray()), "image/jpeg");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't make a thumbnail of " + uri, e);
+        }
+    }
+
+    /**
+     * @return the value of the field, or null when the response doesn't contain an integer field with that name
+     */
+    private static Integer integerField(Response<AiMessage> response, String field) {
+        JsonObject json = GSON.fromJson(response.content().text(), JsonObject.class);
+        if (json == null || !(json.get(field) instanceof JsonPrimitive value) || !value.isNumber()) {
+            return null;
+        }
+        return value.getAsInt();
+    }
+
+    private static Schema integerSchema(String field, String description) {
+        return Schema.newBuilder()
+            .setType(Type.OBJECT)
+            .putProperties(field, Schema.newBuilder()
+                .setDescription(description)
+                .setType(Type.INTEGER)
+                .build())
+            .addAllRequired(List.of(field))
+            .build();
+    }
+
+    private static <T> List<T> awaitAll(List<Future<T>> futures) {
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Judging cancelled");
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw new CompletionException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Reads and writes images, in Cloud Storage for <code>gs://</code> URIs,
+ * or in the local file system for <code>file://</code> URIs, as written by the offline fake models.
+ */
+class ImageStore {
+
+    private final Supplier<Storage> storage;
+
+    /**
+     * @param storage the Cloud Storage client, only created when a <code>gs://</code> URI is read
+     */
+    ImageStore(Supplier<Storage> storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * An image store for the local file system only, to run the pipeline offline.
+     */
+    static ImageStore local() {
+        return new ImageStore(() -> {
+            throw new IllegalStateException("Cloud Storage isn't available offline");
+        });
+    }
+
+    byte[] read(String uri) throws IOException {
+        URI location = URI.create(uri);
+        return switch (location.getScheme()) {
+            case "gs" -> storage.get().readAllBytes(BlobId.fromGsUtilUri(uri));
+            case "file" -> Files.readAllBytes(Path.of(location));
+            default -> throw new IllegalArgumentException("Unsupported image URI: " + uri);
+        };
+    }
+
+    /**
+     * @return the URI of the written image
+     */
+    String write(String uri, byte[] image, String contentType) throws IOException {
+        URI location = URI.create(uri);
+        switch (location.getScheme()) {
+            case "gs" -> storage.get().create(BlobInfo.newBuilder(BlobId.fromGsUtilUri(uri))
+                .setContentType(contentType)
+                .setCacheControl("public, max-age=31536000, immutable")
+                .build(), image);
+            case "file" -> {
+                Path file = Path.of(location);
+                Files.createDirectories(file.getParent());
+                Files.write(file, image);
+            }
+            default -> throw new IllegalArgumentException("Unsupported image URI: " + uri);
+        }
+        return uri;
+    }
+}
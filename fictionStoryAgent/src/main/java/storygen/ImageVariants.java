@@ -0,0 +1,186 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import storygen.ExplicitStoryGeneratorAgent.Story.Chapter.ImageVariant;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Creates smaller variants of the chosen image of a chapter, for the website to pick the right size with <code>srcset</code>.
+ * <p>
+ * The image is decoded once, then each variant is resized and encoded as a WebP image concurrently,
+ * and written next to the original image, or in a local directory.
+ * The original image is listed as the largest variant.
+ * <p>
+ * The WebP encoder is an ImageIO plugin wrapping the native libwebp, so when it isn't available on the platform,
+ * the variants are encoded as progressive JPEG images instead.
+ * There is no AVIF encoder for the JVM, so AVIF isn't offered.
+ */
+class ImageVariants {
+
+    private final List<Integer> widths;
+    private final float quality;
+    private final Path localDirectory;
+    private final ImageStore imageStore;
+    private final ExecutorService executor;
+    private final Format format;
+
+    private enum Format {
+        WEBP("image/webp", "webp"), JPEG("image/jpeg", "jpg");
+
+        final String mimeType;
+        final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * @param widths the widths of the variants, the ones not smaller than the original image being skipped
+     * @param quality the lossy compression quality, between 0 and 1
+     * @param localDirectory where to write the variants, or null to write them next to the original image
+     */
+    ImageVariants(List<Integer> widths, float quality, Path localDirectory, ImageStore imageStore, ExecutorService executor) {
+        this.widths = widths;
+        this.quality = quality;
+        this.localDirectory = localDirectory;
+        this.imageStore = imageStore;
+        this.executor = executor;
+        this.format = availableFormat();
+    }
+
+    /**
+     * The WebP writer is registered even when its native library can't be loaded on this platform,
+     * so a tiny image is encoded to check that it actually works.
+     */
+    private Format availableFormat() {
+        try {
+            encode(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), Format.WEBP);
+            return Format.WEBP;
+        } catch (IOException | LinkageError | RuntimeException e) {
+            System.out.println("No WebP encoder available (" + e + "), the image variants are encoded as JPEG images");
+            return Format.JPEG;
+        }
+    }
+
+    List<ImageVariant> create(String imageUri) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(imageStore.read(imageUri)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the image " + imageUri, e);
+        }
+        if (image == null) {
+            throw new IllegalStateException("Unsupported image format: " + imageUri);
+        }
+
+        List<Future<ImageVariant>> futures = widths.stream()
+            .filter(width -> width < image.getWidth())
+            .map(width -> executor.submit(() -> createVariant(imageUri, image, width)))
+            .toList();
+
+        List<ImageVariant> variants = new ArrayList<>();
+        try {
+            for (Future<ImageVariant> future : futures) {
+                variants.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Creation of the variants of " + imageUri + " cancelled");
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw new CompletionException(e.getCause());
+        }
+        variants.add(new ImageVariant(imageUri, image.getWidth(), image.getHeight()));
+        return variants;
+    }
+
+    private ImageVariant createVariant(String imageUri, BufferedImage image, int width) throws IOException {
+        int height = Math.max(1, Math.round((float) image.getHeight() * width / image.getWidth()));
+
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+
+        String variantUri = imageStore.write(variantUri(imageUri, width), encode(resized, format), format.mimeType);
+        return new ImageVariant(variantUri, width, height);
+    }
+
+    private byte[] encode(BufferedImage image, Format format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(format.mimeType);
+        if (!writers.hasNext()) {
+            throw new IOException("No " + format.mimeType + " writer");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam parameters = writer.getDefaultWriteParam();
+        parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        if (format == Format.WEBP) {
+            parameters.setCompressionType("Lossy");
+        } else {
+            parameters.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        parameters.setCompressionQuality(quality);
+
+        var encoded = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(encoded)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), parameters);
+        } finally {
+            writer.dispose();
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * For example <code>gs://bucket/images/image-123.png</code> becomes <code>gs://bucket/images/image-123-640w.webp</code>.
+     */
+    private String variantUri(String imageUri, int width) {
+        String name = imageUri.substring(imageUri.lastIndexOf('/') + 1);
+        int extension = name.lastIndexOf('.');
+        String variantName = (extension > 0 ? name.substring(0, extension) : name) + "-" + width + "w." + format.extension;
+        if (localDirectory != null) {
+            return localDirectory.toAbsolutePath().resolve(variantName).toUri().toString();
+        }
+        return imageUri.substring(0, imageUri.lastIndexOf('/') + 1) + variantName;
+    }
+}
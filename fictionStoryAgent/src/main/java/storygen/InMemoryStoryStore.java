@@ -0,0 +1,118 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.Timestamp;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the story documents in memory, to run the pipeline without Firestore.
+ */
+class InMemoryStoryStore implements StoryStore {
+
+    private final Random random = new Random();
+    private final Map<String, Map<String, Object>> documents = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> indexDocuments = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> duplicateIndexDocuments = new ConcurrentHashMap<>();
+
+    @Override
+    public Timestamp save(Story story) {
+        return publish(StoryStore.documentId(story.title(), random), story);
+    }
+
+    @Override
+    public void saveDraft(String documentId, Story story) {
+        documents.put(documentId, StoryStore.toDraftDocument(story));
+    }
+
+    @Override
+    public Timestamp publish(String documentId, Story story) {
+        long createdAt = System.currentTimeMillis();
+        documents.put(documentId, StoryStore.toDocument(story, createdAt));
+        updateIndex(new StoryIndex.Entry(documentId, story.title(), createdAt));
+        return Timestamp.now();
+    }
+
+    @Override
+    public List<StoredStory> publishedStories() {
+        return documents.entrySet().stream()
+            .filter(document -> StoryStore.isComplete(document.getValue()))
+            .sorted(Comparator.comparingLong(document -> (Long) document.getValue().get("createdAt")))
+            .map(document -> new StoredStory(document.getKey(), document.getValue()))
+            .toList();
+    }
+
+    @Override
+    public List<DuplicateStoryIndex.Entry> duplicateIndexEntries() {
+        if (!duplicateIndexDocuments.containsKey(DuplicateStoryIndex.META)) {
+            return null;
+        }
+        return duplicateIndexDocuments.entrySet().stream()
+            .filter(document -> !document.getKey().equals(DuplicateStoryIndex.META))
+            .sorted(Map.Entry.comparingByKey())
+            .flatMap(document -> DuplicateStoryIndex.entries(document.getValue()).stream())
+            .toList();
+    }
+
+    @Override
+    public synchronized void addDuplicateIndexEntries(List<DuplicateStoryIndex.Entry> entries) {
+        Map<String, Object> meta = duplicateIndexDocuments.get(DuplicateStoryIndex.META);
+        int chunks = meta == null ? 0 : ((Number) meta.get("chunks")).intValue();
+        DuplicateStoryIndex.Update update = DuplicateStoryIndex.append(chunks, chunks == 0 ? List.of() :
+            DuplicateStoryIndex.entries(duplicateIndexDocuments.get(StoryIndex.chunkId(chunks - 1))), entries);
+        update.chunks().forEach((chunk, chunkEntries) ->
+            duplicateIndexDocuments.put(StoryIndex.chunkId(chunk), DuplicateStoryIndex.chunkFields(chunkEntries)));
+        duplicateIndexDocuments.put(DuplicateStoryIndex.META, update.meta());
+    }
+
+    private synchronized void updateIndex(StoryIndex.Entry story) {
+        Map<String, Object> meta = indexDocuments.get(StoryIndex.META);
+        StoryIndex.Update update;
+        if (meta == null) {
+            update = StoryIndex.rebuild(documents.entrySet().stream()
+                .filter(document -> StoryStore.isComplete(document.getValue()))
+                .map(document -> new StoryIndex.Entry(document.getKey(),
+                    (String) document.getValue().get("title"), (Long) document.getValue().get("createdAt")))
+                .toList());
+        } else {
+            int lastChunk = ((Number) meta.get("chunks")).intValue() - 1;
+            update = StoryIndex.append(meta, lastChunk < 0 ? List.of() :
+                StoryIndex.entries(indexDocuments.get(StoryIndex.chunkId(lastChunk))), story);
+        }
+        if (update != null) {
+            update.chunks().forEach((chunk, stories) ->
+                indexDocuments.put(StoryIndex.chunkId(chunk), StoryIndex.chunkFields(stories)));
+            indexDocuments.put(StoryIndex.META, update.meta());
+        }
+    }
+
+    Map<String, Map<String, Object>> documents() {
+        return documents;
+    }
+
+    /**
+     * The documents of the {@link StoryIndex}, by document ID.
+     */
+    Map<String, Map<String, Object>> indexDocuments() {
+        return indexDocuments;
+    }
+}
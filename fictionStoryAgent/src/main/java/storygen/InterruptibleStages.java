@@ -0,0 +1,71 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Runs the stages of a chapter on an executor, as completable futures which can be chained,
+ * while keeping the future of the task running each stage.
+ * <p>
+ * Cancelling a {@link CompletableFuture} doesn't interrupt the thread computing it,
+ * so when a chapter fails or is cancelled, its in-flight model calls are interrupted through the tasks' futures instead,
+ * and the stages not started yet are never submitted.
+ */
+class InterruptibleStages {
+
+    private final ExecutorService executor;
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private final List<CompletableFuture<?>> results = new ArrayList<>();
+    private boolean cancelled;
+
+    InterruptibleStages(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    <T> CompletableFuture<T> supply(Supplier<T> stage) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (cancelled) {
+                result.cancel(false);
+                return result;
+            }
+            results.add(result);
+            tasks.add(executor.submit(() -> {
+                try {
+                    result.complete(stage.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }));
+        }
+        return result;
+    }
+
+    /**
+     * Interrupts the running stages, and cancels the stages which haven't started or completed yet.
+     */
+    synchronized void cancelAll() {
+        cancelled = true;
+        tasks.forEach(task -> task.cancel(true));
+        results.forEach(result -> result.cancel(false));
+    }
+}
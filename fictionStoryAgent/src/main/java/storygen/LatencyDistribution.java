@@ -0,0 +1,79 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Simulated latency of a model call, used by {@link FakeModelProvider}.
+ * <p>
+ * Distributions are described as <code>fixed:200ms</code>, <code>uniform:1s..3s</code>,
+ * or <code>lognormal:4s,0.4</code> (median, and standard deviation of the underlying normal distribution),
+ * the log-normal distribution being a good fit for the long tail of model latencies.
+ */
+record LatencyDistribution(Kind kind, double firstMillis, double secondMillis) {
+
+    enum Kind { FIXED, UNIFORM, LOGNORMAL }
+
+    static LatencyDistribution parse(String spec) {
+        String[] kindAndParameters = spec.trim().split(":", 2);
+        if (kindAndParameters.length != 2) {
+            throw new IllegalArgumentException("Latency distributions look like fixed:200ms, uniform:1s..3s, or lognormal:4s,0.4, got: " + spec);
+        }
+        String parameters = kindAndParameters[1];
+        return switch (kindAndParameters[0].toLowerCase()) {
+            case "fixed" -> new LatencyDistribution(Kind.FIXED, millis(parameters), 0);
+            case "uniform" -> {
+                String[] bounds = parameters.split("\\.\\.");
+                yield new LatencyDistribution(Kind.UNIFORM, millis(bounds[0]), millis(bounds[1]));
+            }
+            case "lognormal" -> {
+                String[] medianAndSigma = parameters.split(",");
+                yield new LatencyDistribution(Kind.LOGNORMAL, millis(medianAndSigma[0]), Double.parseDouble(medianAndSigma[1]));
+            }
+            default -> throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+        };
+    }
+
+    Duration sample(Random random, double scale) {
+        double millis = switch (kind) {
+            case FIXED -> firstMillis;
+            case UNIFORM -> firstMillis + random.nextDouble() * (secondMillis - firstMillis);
+            case LOGNORMAL -> firstMillis * Math.exp(secondMillis * random.nextGaussian());
+        };
+        return Duration.ofNanos((long) (millis * scale * 1_000_000));
+    }
+
+    private static double millis(String duration) {
+        String value = duration.trim().toLowerCase();
+        if (value.endsWith("ms")) {
+            return Double.parseDouble(value.substring(0, value.length() - 2));
+        } else if (value.endsWith("s")) {
+            return Double.parseDouble(value.substring(0, value.length() - 1)) * 1000;
+        }
+        return Double.parseDouble(value);
+    }
+
+    @Override
+    public String toString() {
+        return switch (kind) {
+            case FIXED -> "fixed:" + firstMillis + "ms";
+            case UNIFORM -> "uniform:" + firstMillis + "ms.." + secondMillis + "ms";
+            case LOGNORMAL -> "lognormal:" + firstMillis + "ms," + secondMillis;
+        };
+    }
+}
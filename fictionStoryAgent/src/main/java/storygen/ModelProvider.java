@@ -0,0 +1,60 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.vertexai.api.Schema;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.output.Response;
+
+import java.util.List;
+
+/**
+ * The chat and image models behind each stage of the story pipeline.
+ * Implemented by {@link VertexAiModelProvider} for Gemini and Imagen on Vertex AI,
+ * and by {@link FakeModelProvider} to run the pipeline offline.
+ */
+interface ModelProvider extends AutoCloseable {
+
+    /**
+     * @param temperature the temperature of the model, or null for the model's default
+     * @param responseSchema the JSON schema of the response, or null for a plain text response
+     */
+    Response<AiMessage> chat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages);
+
+    /**
+     * Streams the response of the chat model, the handler being called on the provider's threads.
+     */
+    void streamChat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages,
+                    StreamingResponseHandler<AiMessage> handler);
+
+    /**
+     * @return the URIs of the generated images
+     */
+    List<String> generateImages(String modelName, String prompt, int count);
+
+    /**
+     * @return a description of the resources used by the provider, printed at the end of a run
+     */
+    default List<String> stats() {
+        return List.of();
+    }
+
+    @Override
+    default void close() throws Exception {
+    }
+}
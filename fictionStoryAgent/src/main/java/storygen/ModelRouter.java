@@ -0,0 +1,186 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Picks the chat model of each stage of the pipeline: the configured model of the stage,
+ * or a faster fallback model while the stage's model is too slow or failing too often.
+ * <p>
+ * The latencies and failures of the last calls of each stage are kept in a rolling window.
+ * When the 95th percentile latency, or the error rate, of a full enough window crosses its threshold,
+ * the stage is routed to the fallback model for a cool-down period,
+ * after which the stage's model is tried again, with a fresh window.
+ * Each routing change is printed, and recorded in the {@link RunMetrics}, with the calls made with each model.
+ */
+class ModelRouter {
+
+    /** Number of calls of a stage needed before its latency and error rate are trusted */
+    private static final int MIN_SAMPLES = 10;
+    private static final Duration COOL_DOWN = Duration.ofMinutes(2);
+
+    private final Map<Stage, String> stageModels;
+    private final String defaultModel;
+    private final String fallbackModel;
+    private final long p95ThresholdMillis;
+    private final double errorRateThreshold;
+    private final int windowSize;
+    private final RunMetrics metrics;
+    private final Map<Stage, StageRoute> routes = new EnumMap<>(Stage.class);
+
+    enum Outcome {
+        SUCCEEDED, FAILED,
+        /** The call was cancelled, like the losing call of a hedge, which says nothing of the model */
+        CANCELLED;
+
+        static Outcome of(Throwable failure) {
+            return ResilientCalls.isCancellation(failure) || Thread.currentThread().isInterrupted() ? CANCELLED : FAILED;
+        }
+    }
+
+    /**
+     * The route of a stage, and its rolling window of the last calls made with the stage's model.
+     */
+    private final class StageRoute {
+        final long[] latenciesMillis = new long[windowSize];
+        final boolean[] failures = new boolean[windowSize];
+        int next;
+        int samples;
+        long fallbackUntilNanos;
+        boolean fallingBack;
+
+        void clear() {
+            next = 0;
+            samples = 0;
+        }
+    }
+
+    /**
+     * @param p95ThresholdMillis the 95th percentile latency above which a stage falls back, or 0 to never fall back on latency
+     * @param errorRateThreshold the error rate above which a stage falls back, or 1 to never fall back on errors
+     */
+    ModelRouter(Map<Stage, String> stageModels, String defaultModel, String fallbackModel,
+                long p95ThresholdMillis, double errorRateThreshold, int windowSize, RunMetrics metrics) {
+        this.stageModels = Map.copyOf(stageModels);
+        this.defaultModel = defaultModel;
+        this.fallbackModel = fallbackModel;
+        this.p95ThresholdMillis = p95ThresholdMillis;
+        this.errorRateThreshold = errorRateThreshold;
+        this.windowSize = Math.max(MIN_SAMPLES, windowSize);
+        this.metrics = metrics;
+        for (Stage stage : Stage.values()) {
+            routes.put(stage, new StageRoute());
+        }
+    }
+
+    /**
+     * The configured model of a stage, regardless of fallbacks.
+     */
+    String stageModel(Stage stage) {
+        return stageModels.getOrDefault(stage, defaultModel);
+    }
+
+    /**
+     * @return the model to call for this stage
+     */
+    String route(Stage stage) {
+        StageRoute route = routes.get(stage);
+        String model;
+        synchronized (route) {
+            if (route.fallingBack && System.nanoTime() - route.fallbackUntilNanos > 0) {
+                route.fallingBack = false;
+                route.clear();
+                decision(stage, stageModel(stage), "cool-down of " + COOL_DOWN.toSeconds() + "s over");
+            }
+            model = route.fallingBack ? fallbackModel : stageModel(stage);
+        }
+        return model;
+    }
+
+    /**
+     * Records the outcome of a call, the calls made with the fallback model, and the cancelled calls,
+     * not counting towards the window.
+     */
+    void record(Stage stage, String model, long latencyNanos, Outcome outcome) {
+        metrics.recordModelCall(stage, model);
+        if (outcome == Outcome.CANCELLED) {
+            return;
+        }
+        StageRoute route = routes.get(stage);
+        synchronized (route) {
+            if (route.fallingBack || !model.equals(stageModel(stage))) {
+                return;
+            }
+            route.latenciesMillis[route.next] = latencyNanos / 1_000_000;
+            route.failures[route.next] = outcome == Outcome.FAILED;
+            route.next = (route.next + 1) % windowSize;
+            route.samples = Math.min(windowSize, route.samples + 1);
+            if (route.samples < MIN_SAMPLES || fallbackModel.equals(model)) {
+                return;
+            }
+
+            String reason = null;
+            long p95 = p95(route);
+            double errorRate = errorRate(route);
+            if (p95ThresholdMillis > 0 && p95 > p95ThresholdMillis) {
+                reason = "p95 of " + p95 + " ms above " + p95ThresholdMillis + " ms";
+            } else if (errorRate > errorRateThreshold) {
+                reason = String.format("error rate of %.0f%% above %.0f%%", errorRate * 100, errorRateThreshold * 100);
+            }
+            if (reason != null) {
+                route.fallingBack = true;
+                route.fallbackUntilNanos = System.nanoTime() + COOL_DOWN.toNanos();
+                decision(stage, fallbackModel, reason);
+            }
+        }
+    }
+
+    private void decision(Stage stage, String model, String reason) {
+        System.out.println("Routing " + stage.label + " to " + model + ": " + reason);
+        metrics.recordRoutingDecision(stage, model, reason);
+    }
+
+    private long p95(StageRoute route) {
+        long[] latencies = Arrays.copyOf(route.latenciesMillis, route.samples);
+        Arrays.sort(latencies);
+        return latencies[(int) Math.ceil(0.95 * latencies.length) - 1];
+    }
+
+    private double errorRate(StageRoute route) {
+        int failures = 0;
+        for (int i = 0; i < route.samples; i++) {
+            if (route.failures[i]) {
+                failures++;
+            }
+        }
+        return (double) failures / route.samples;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.IMAGES && stage != Stage.IMAGE_VARIANTS && stage != Stage.SAVE) {
+                description.append(description.isEmpty() ? "" : ", ").append(stage.label).append(": ").append(stageModel(stage));
+            }
+        }
+        return description + " (fallback: " + fallbackModel + ")";
+    }
+}
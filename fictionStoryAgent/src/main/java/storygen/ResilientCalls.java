@@ -0,0 +1,328 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retries and hedges the model calls of all the stages, behind their concurrency limiters.
+ * <p>
+ * Failures are classified as quota, safety, transient or fatal, from their gRPC status code.
+ * Quota and transient failures are retried with an exponential backoff and full jitter,
+ * quota failures starting with a longer delay, while safety and fatal failures are handed back to the caller.
+ * Retries draw from a retry budget shared by all the calls, which grows with each call,
+ * so that an outage doesn't turn every call into several calls and make the quota exhaustion worse.
+ * <p>
+ * With hedging, when a call takes longer than the 95th percentile of the previous calls of its stage,
+ * a second identical call is sent, and whichever returns first wins.
+ * Hedged calls also draw from the retry budget, and wait for a permit of the concurrency limiter like any other call.
+ */
+class ResilientCalls implements AutoCloseable {
+
+    enum FailureKind {
+        QUOTA(true), SAFETY(false), TRANSIENT(true), FATAL(false);
+
+        final boolean retryable;
+
+        FailureKind(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        /**
+         * Vertex AI errors reach us wrapped in various client exceptions,
+         * so the classification looks for a status code, or a failure classified by the pipeline, along the whole cause chain.
+         */
+        static FailureKind classify(Throwable failure) {
+            if (isCancellation(failure)) {
+                return FATAL;
+            }
+            for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+                if (cause instanceof ModelCallException modelCallException) {
+                    return modelCallException.kind;
+                }
+                if (cause instanceof NonRetryableException) {
+                    return FATAL;
+                }
+                if (cause instanceof ApiException apiException) {
+                    // the gax codes mirror the gRPC ones
+                    return of(Status.Code.valueOf(apiException.getStatusCode().getCode().name()));
+                }
+                if (cause instanceof StatusRuntimeException statusException) {
+                    return of(statusException.getStatus().getCode());
+                }
+                if (cause instanceof StatusException statusException) {
+                    return of(statusException.getStatus().getCode());
+                }
+                if (cause instanceof IOException || cause instanceof TimeoutException) {
+                    return TRANSIENT;
+                }
+            }
+            return FATAL;
+        }
+
+        static FailureKind of(Status.Code code) {
+            return switch (code) {
+                case RESOURCE_EXHAUSTED -> QUOTA;
+                case UNAVAILABLE, DEADLINE_EXCEEDED, INTERNAL, ABORTED -> TRANSIENT;
+                default -> FATAL;
+            };
+        }
+    }
+
+    /**
+     * Whether a call failed because it was cancelled, like the losing call of a hedge, rather than because of the model.
+     */
+    static boolean isCancellation(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof CancellationException
+                || cause instanceof InterruptedException
+                || cause instanceof ClosedByInterruptException
+                || cause instanceof ApiException apiException && apiException.getStatusCode().getCode() == StatusCode.Code.CANCELLED
+                || cause instanceof StatusRuntimeException statusException && statusException.getStatus().getCode() == Status.Code.CANCELLED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A failure of a model call which the pipeline classified itself, for example a response blocked by the safety filters.
+     */
+    static class ModelCallException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final FailureKind kind;
+
+        ModelCallException(FailureKind kind, String message) {
+            this(kind, message, null);
+        }
+
+        ModelCallException(FailureKind kind, String message, Throwable cause) {
+            super(message, cause);
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Marks a failure which must not be retried, whatever its cause,
+     * for example when a streamed response already handed over part of its content.
+     */
+    static class NonRetryableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NonRetryableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final Duration TRANSIENT_BASE_DELAY = Duration.ofMillis(500);
+    private static final Duration QUOTA_BASE_DELAY = Duration.ofSeconds(2);
+    private static final Duration MAX_DELAY = Duration.ofSeconds(30);
+    /** Number of successful calls of a stage needed before its 95th percentile is trusted for hedging */
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    private final int maxAttempts;
+    private final boolean hedging;
+    private final RetryBudget retryBudget;
+    private final RunMetrics metrics;
+    private final Map<Stage, Histogram> serviceMillis = new EnumMap<>(Stage.class);
+    private final ExecutorService hedgeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * @param maxAttempts the maximum number of attempts of a call, including the first one
+     * @param retryBudgetRatio the number of retries earned by each call, 0.2 allowing one retry every 5 calls
+     * @param hedging whether slow calls are hedged with a second identical call
+     */
+    ResilientCalls(int maxAttempts, double retryBudgetRatio, boolean hedging, RunMetrics metrics) {
+        this.maxAttempts = maxAttempts;
+        this.hedging = hedging;
+        this.retryBudget = new RetryBudget(retryBudgetRatio);
+        this.metrics = metrics;
+        for (Stage stage : Stage.values()) {
+            serviceMillis.put(stage, new ConcurrentHistogram(3));
+        }
+    }
+
+    /**
+     * Calls the model behind the limiter, retrying quota and transient failures.
+     *
+     * @param hedgeable whether the call can be hedged, which is only the case for calls without side effects
+     */
+    <T> T call(Stage stage, ConcurrencyLimiter limiter, boolean hedgeable, Supplier<T> call) {
+        retryBudget.deposit();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return hedging && hedgeable ? hedgedAttempt(stage, limiter, call) : attempt(stage, limiter, call, new AtomicLong());
+            } catch (RuntimeException e) {
+                FailureKind kind = FailureKind.classify(e);
+                if (!kind.retryable || attempt >= maxAttempts || !retryBudget.tryWithdraw()) {
+                    throw e;
+                }
+                Duration delay = backoff(kind, attempt);
+                System.out.println("Retrying " + stage.label + " in " + delay.toMillis() + "ms after a " +
+                    kind.name().toLowerCase(Locale.ROOT) + " failure (attempt " + attempt + "/" + maxAttempts + "): " + e.getMessage());
+                metrics.recordRetry(stage);
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random delay between 0 and the exponentially growing cap,
+     * so that the calls which failed together don't all come back at the same time.
+     */
+    static Duration backoff(FailureKind kind, int attempt) {
+        Duration base = kind == FailureKind.QUOTA ? QUOTA_BASE_DELAY : TRANSIENT_BASE_DELAY;
+        long capMillis = Math.min(MAX_DELAY.toMillis(), base.toMillis() << Math.min(attempt - 1, 16));
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(capMillis + 1));
+    }
+
+    /**
+     * @param serviceStart set to the time the call got its permit, and actually started
+     */
+    private <T> T attempt(Stage stage, ConcurrencyLimiter limiter, Supplier<T> call, AtomicLong serviceStart) {
+        return limiter.call(() -> {
+            long start = System.nanoTime();
+            serviceStart.set(start);
+            T result = call.get();
+            serviceMillis.get(stage).recordValue((System.nanoTime() - start) / 1_000_000);
+            return result;
+        }, queuedNanos -> metrics.recordQueueing(stage, queuedNanos));
+    }
+
+    private <T> T hedgedAttempt(Stage stage, ConcurrencyLimiter limiter, Supplier<T> call) {
+        Histogram latencies = serviceMillis.get(stage);
+        if (latencies.getTotalCount() < HEDGE_MIN_SAMPLES) {
+            return attempt(stage, limiter, call, new AtomicLong());
+        }
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencies.getValueAtPercentile(95));
+
+        ExecutorCompletionService<T> completionService = new ExecutorCompletionService<>(hedgeExecutor);
+        AtomicLong primaryStart = new AtomicLong();
+        Future<T> primary = completionService.submit(() -> attempt(stage, limiter, call, primaryStart));
+        Future<T> hedge = null;
+        try {
+            // the threshold only counts once the primary call got its permit, waiting in line isn't slowness
+            while (true) {
+                long started = primaryStart.get();
+                long remainingNanos = started == 0 ? thresholdNanos : started + thresholdNanos - System.nanoTime();
+                if (started != 0 && remainingNanos <= 0) {
+                    break;
+                }
+                Future<T> completed = completionService.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                if (completed != null) {
+                    return completed.get();
+                }
+            }
+
+            if (!retryBudget.tryWithdraw()) {
+                return primary.get();
+            }
+            metrics.recordHedge(stage);
+            hedge = completionService.submit(() -> attempt(stage, limiter, call, new AtomicLong()));
+
+            // the first successful call wins, the call fails only when both failed
+            try {
+                return completionService.take().get();
+            } catch (ExecutionException e) {
+                return completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted during a hedged " + stage.label + " call");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(e.getCause());
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private static void sleep(Duration delay) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting before a retry");
+        }
+    }
+
+    @Override
+    public void close() {
+        hedgeExecutor.close();
+    }
+
+    /**
+     * Each call earns a fraction of a retry, and each retry or hedge spends a whole one.
+     * The budget starts with a few retries, and can't grow beyond a ceiling, so that a long healthy period
+     * doesn't allow a retry storm afterward.
+     */
+    static class RetryBudget {
+        private static final long UNIT = 1000;
+        private static final long INITIAL = 10 * UNIT;
+        private static final long CEILING = 100 * UNIT;
+
+        private final long depositPerCall;
+        private final AtomicLong balance = new AtomicLong(INITIAL);
+
+        RetryBudget(double ratio) {
+            this.depositPerCall = Math.round(ratio * UNIT);
+        }
+
+        void deposit() {
+            balance.updateAndGet(current -> Math.min(CEILING, current + depositPerCall));
+        }
+
+        boolean tryWithdraw() {
+            while (true) {
+                long current = balance.get();
+                if (current < UNIT) {
+                    return false;
+                }
+                if (balance.compareAndSet(current, current - UNIT)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
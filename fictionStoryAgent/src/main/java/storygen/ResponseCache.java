@@ -0,0 +1,413 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.vertexai.api.Schema;
+import com.google.gson.Gson;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.ImageContent;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Content-addressed cache of chat and image model responses, stored on the local disk.
+ * <p>
+ * Responses are keyed by a SHA-256 hash of the model name, its parameters, the response schema, and the messages.
+ * They are appended to a log file (<code>responses.log</code>), and their location in the log
+ * is appended to an index of fixed-size slots (<code>responses.idx</code>), which is memory-mapped when the cache is opened.
+ * When the log grows beyond its maximum size, it's compacted by keeping only the most recently used responses.
+ * <p>
+ * In <code>REPLAY_ONLY</code> mode, the cache acts as a deterministic offline fixture:
+ * a missing response is an error rather than a call to the model.
+ */
+class ResponseCache implements AutoCloseable {
+
+    enum Mode {
+        /** No caching, every call goes to the model */
+        OFF,
+        /** Cached responses are returned, and missing ones are fetched from the model and stored */
+        READ_THROUGH,
+        /** Every call goes to the model, and responses are stored, to record a fresh fixture */
+        WRITE_ONLY,
+        /** Only cached responses are returned, a missing response is an error */
+        REPLAY_ONLY;
+
+        static Mode fromOption(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final int KEY_SIZE = 32;
+    /** key, log offset of the record, length of the value */
+    private static final int SLOT_SIZE = KEY_SIZE + Long.BYTES + Integer.BYTES;
+    /** key, length of the value, followed by the value itself */
+    private static final int RECORD_HEADER_SIZE = KEY_SIZE + Integer.BYTES;
+
+    private static final Gson GSON = new Gson();
+
+    private record CacheKey(byte[] hash) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CacheKey key && Arrays.equals(hash, key.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(hash);
+        }
+
+        @Override
+        public String toString() {
+            return HexFormat.of().formatHex(hash, 0, 8);
+        }
+    }
+
+    private static final class Entry {
+        final long offset;
+        final int length;
+        long lastAccess;
+
+        Entry(long offset, int length, long lastAccess) {
+            this.offset = offset;
+            this.length = length;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private record CachedChatResponse(String text, Integer inputTokens, Integer outputTokens) {}
+
+    private record CachedImages(String prompt, List<String> imageUris) {}
+
+    private final Mode mode;
+    private final Path logFile;
+    private final Path indexFile;
+    private final long maxSizeBytes;
+
+    private final Map<CacheKey, Entry> entries = new HashMap<>();
+    private FileChannel log;
+    private FileChannel index;
+    private long accessClock = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private ResponseCache(Mode mode, Path directory, long maxSizeBytes) {
+        this.mode = mode;
+        this.logFile = directory.resolve("responses.log");
+        this.indexFile = directory.resolve("responses.idx");
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    static ResponseCache open(Mode mode, Path directory, long maxSizeBytes) {
+        var cache = new ResponseCache(mode, directory, maxSizeBytes);
+        if (mode != Mode.OFF) {
+            try {
+                Files.createDirectories(directory);
+                cache.openFiles();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't open the response cache in " + directory, e);
+            }
+        }
+        return cache;
+    }
+
+    Response<AiMessage> chat(String modelName, Float temperature, Schema responseSchema,
+                             List<ChatMessage> messages, Supplier<Response<AiMessage>> invocation) {
+        if (mode == Mode.OFF) {
+            return invocation.get();
+        }
+
+        StringBuilder keyText = new StringBuilder("chat\n")
+            .append(modelName).append('\n')
+            .append(temperature).append('\n')
+            .append(responseSchema).append('\n');
+        messages.forEach(message -> appendMessage(keyText, message));
+        CacheKey key = keyOf(keyText.toString());
+
+        String cachedValue = lookup(key, "chat call to " + modelName);
+        if (cachedValue != null) {
+            CachedChatResponse cached = GSON.fromJson(cachedValue, CachedChatResponse.class);
+            return Response.from(AiMessage.from(cached.text),
+                cached.inputTokens == null && cached.outputTokens == null ? null :
+                    new TokenUsage(cached.inputTokens, cached.outputTokens));
+        }
+
+        Response<AiMessage> response = invocation.get();
+        TokenUsage tokenUsage = response.tokenUsage();
+        store(key, GSON.toJson(new CachedChatResponse(response.content().text(),
+            tokenUsage == null ? null : tokenUsage.inputTokenCount(),
+            tokenUsage == null ? null : tokenUsage.outputTokenCount())));
+        return response;
+    }
+
+    List<String> images(String modelName, String prompt, int count, Supplier<List<String>> invocation) {
+        if (mode == Mode.OFF) {
+            return invocation.get();
+        }
+
+        CacheKey key = keyOf("images\n" + modelName + '\n' + count + '\n' + prompt);
+
+        String cachedValue = lookup(key, "image call to " + modelName);
+        if (cachedValue != null) {
+            return GSON.fromJson(cachedValue, CachedImages.class).imageUris;
+        }
+
+        List<String> imageUris = invocation.get();
+        store(key, GSON.toJson(new CachedImages(prompt, imageUris)));
+        return imageUris;
+    }
+
+    synchronized String stats() {
+        return "response cache (" + mode + "): " + hits + " hits, " + misses + " misses, " +
+            entries.size() + " entries";
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            index.close();
+            log = null;
+            index = null;
+        }
+    }
+
+    private synchronized String lookup(CacheKey key, String description) {
+        Entry entry = mode == Mode.WRITE_ONLY ? null : entries.get(key);
+        if (entry == null) {
+            misses++;
+            if (mode == Mode.REPLAY_ONLY) {
+                throw new IllegalStateException("No cached response for " + description + " (key " + key + ")");
+            }
+            return null;
+        }
+        hits++;
+        entry.lastAccess = ++accessClock;
+        try {
+            ByteBuffer value = ByteBuffer.allocate(entry.length);
+            readFully(log, value, entry.offset + RECORD_HEADER_SIZE);
+            return new String(value.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the response cache", e);
+        }
+    }
+
+    private synchronized void store(CacheKey key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        try {
+            long offset = log.size();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length)
+                .put(key.hash).putInt(bytes.length).put(bytes).flip();
+            writeFully(log, record, offset);
+            writeFully(index, ByteBuffer.allocate(SLOT_SIZE)
+                .put(key.hash).putLong(offset).putInt(bytes.length).flip(), index.size());
+            entries.put(key, new Entry(offset, bytes.length, ++accessClock));
+
+            if (log.size() > maxSizeBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write to the response cache", e);
+        }
+    }
+
+    private void openFiles() throws IOException {
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (!loadIndex()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Loads the index slots from the memory-mapped index file.
+     * @return false if the index doesn't match the log, and needs to be rebuilt
+     */
+    private boolean loadIndex() throws IOException {
+        long indexSize = index.size();
+        long logSize = log.size();
+        if (indexSize % SLOT_SIZE != 0) {
+            return false;
+        }
+        if (indexSize == 0) {
+            return logSize == 0;
+        }
+
+        MappedByteBuffer slots = index.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+        while (slots.hasRemaining()) {
+            byte[] hash = new byte[KEY_SIZE];
+            slots.get(hash);
+            long offset = slots.getLong();
+            int length = slots.getInt();
+            if (offset < 0 || length < 0 || offset + RECORD_HEADER_SIZE + length > logSize) {
+                entries.clear();
+                return false;
+            }
+            entries.put(new CacheKey(hash), new Entry(offset, length, ++accessClock));
+        }
+        return true;
+    }
+
+    /**
+     * Scans the log to recreate the index, dropping a truncated record at the end of the log, if any.
+     */
+    private void rebuildIndex() throws IOException {
+        entries.clear();
+        index.truncate(0);
+
+        long logSize = log.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (offset + RECORD_HEADER_SIZE <= logSize) {
+            header.clear();
+            readFully(log, header, offset);
+            header.flip();
+            byte[] hash = new byte[KEY_SIZE];
+            header.get(hash);
+            int length = header.getInt();
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > logSize) {
+                break;
+            }
+            entries.put(new CacheKey(hash), new Entry(offset, length, ++accessClock));
+            writeFully(index, ByteBuffer.allocate(SLOT_SIZE)
+                .put(hash).putLong(offset).putInt(length).flip(), index.size());
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        log.truncate(offset);
+    }
+
+    /**
+     * Rewrites the log with the most recently used responses, up to half of the maximum size.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<CacheKey, Entry>> mostRecentFirst = new ArrayList<>(entries.entrySet());
+        mostRecentFirst.sort(Comparator.comparingLong(
+            (Map.Entry<CacheKey, Entry> mapEntry) -> mapEntry.getValue().lastAccess).reversed());
+
+        Path compactedLogFile = logFile.resolveSibling(logFile.getFileName() + ".compacting");
+        Path compactedIndexFile = indexFile.resolveSibling(indexFile.getFileName() + ".compacting");
+        Map<CacheKey, Entry> kept = new HashMap<>();
+
+        try (var compactedLog = FileChannel.open(compactedLogFile, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             var compactedIndex = FileChannel.open(compactedIndexFile, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long offset = 0;
+            for (Map.Entry<CacheKey, Entry> mapEntry : mostRecentFirst) {
+                Entry entry = mapEntry.getValue();
+                int recordSize = RECORD_HEADER_SIZE + entry.length;
+                if (offset + recordSize > maxSizeBytes / 2) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(recordSize);
+                readFully(log, record, entry.offset);
+                writeFully(compactedLog, record.flip(), offset);
+                writeFully(compactedIndex, ByteBuffer.allocate(SLOT_SIZE)
+                    .put(mapEntry.getKey().hash).putLong(offset).putInt(entry.length).flip(), compactedIndex.size());
+                kept.put(mapEntry.getKey(), new Entry(offset, entry.length, entry.lastAccess));
+                offset += recordSize;
+            }
+        }
+
+        log.close();
+        index.close();
+        Files.move(compactedLogFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compactedIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        System.out.println("Response cache compacted: kept " + kept.size() + " of " + entries.size() + " entries");
+        entries.clear();
+        entries.putAll(kept);
+    }
+
+    private static void appendMessage(StringBuilder keyText, ChatMessage message) {
+        keyText.append(message.type()).append(':');
+        switch (message) {
+            case SystemMessage systemMessage -> keyText.append(systemMessage.text());
+            case UserMessage userMessage -> {
+                for (Content content : userMessage.contents()) {
+                    switch (content) {
+                        case TextContent textContent -> keyText.append(textContent.text());
+                        case ImageContent imageContent -> keyText.append(imageContent.image().url() != null ?
+                            imageContent.image().url().toString() :
+                            HexFormat.of().formatHex(sha256(imageContent.image().base64Data())));
+                        default -> keyText.append(content);
+                    }
+                    keyText.append('\u0000');
+                }
+            }
+            case AiMessage aiMessage -> keyText.append(aiMessage.text());
+            default -> keyText.append(message);
+        }
+        keyText.append('\n');
+    }
+
+    private static CacheKey keyOf(String keyText) {
+        return new CacheKey(sha256(keyText));
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of the response cache log");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.gson.GsonBuilder;
+import dev.langchain4j.model.output.TokenUsage;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Latency, token, image and retry metrics of each stage of the pipeline, for a whole run.
+ * <p>
+ * Wall time is the time spent in a stage, including the time spent waiting for a model call permit,
+ * which is also recorded separately as queueing time. Latencies are recorded in HdrHistograms, in milliseconds.
+ * At the end of a run, the metrics are written as a JSON document, or in the Prometheus text format,
+ * to track the cost and latency trends across nightly jobs,
+ * with the chat model calls of each stage, and the changes of model decided by the {@link ModelRouter}.
+ */
+class RunMetrics {
+
+    @FunctionalInterface
+    interface StageWork<T, E extends Exception> {
+        T get() throws E;
+    }
+
+    private static final class StageStats {
+        final Histogram wallMillis = new ConcurrentHistogram(3);
+        final Histogram queueMillis = new ConcurrentHistogram(3);
+        final LongAdder wallNanosTotal = new LongAdder();
+        final LongAdder queueNanosTotal = new LongAdder();
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder hedges = new LongAdder();
+        final LongAdder inputTokens = new LongAdder();
+        final LongAdder outputTokens = new LongAdder();
+        final LongAdder images = new LongAdder();
+        final Map<String, LongAdder> modelCalls = new ConcurrentHashMap<>();
+    }
+
+    record RoutingDecision(Instant at, Stage stage, String model, String reason) {}
+
+    private final Instant startedAt = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<Stage, StageStats> stages = new EnumMap<>(Stage.class);
+    private final LongAdder storiesSucceeded = new LongAdder();
+    private final LongAdder storiesFailed = new LongAdder();
+    private final List<RoutingDecision> routingDecisions = new CopyOnWriteArrayList<>();
+
+    RunMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageStats());
+        }
+    }
+
+    <T, E extends Exception> T time(Stage stage, StageWork<T, E> work) throws E {
+        StageStats stats = stages.get(stage);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = work.get();
+            succeeded = true;
+            return result;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            stats.calls.increment();
+            stats.wallNanosTotal.add(elapsed);
+            stats.wallMillis.recordValue(elapsed / 1_000_000);
+            if (!succeeded) {
+                stats.failures.increment();
+            }
+        }
+    }
+
+    void recordQueueing(Stage stage, long nanos) {
+        StageStats stats = stages.get(stage);
+        stats.queueNanosTotal.add(nanos);
+        stats.queueMillis.recordValue(nanos / 1_000_000);
+    }
+
+    void recordTokens(Stage stage, TokenUsage tokenUsage) {
+        if (tokenUsage != null) {
+            StageStats stats = stages.get(stage);
+            if (tokenUsage.inputTokenCount() != null) {
+                stats.inputTokens.add(tokenUsage.inputTokenCount());
+            }
+            if (tokenUsage.outputTokenCount() != null) {
+                stats.outputTokens.add(tokenUsage.outputTokenCount());
+            }
+        }
+    }
+
+    void recordImages(Stage stage, int count) {
+        stages.get(stage).images.add(count);
+    }
+
+    void recordRetry(Stage stage) {
+        stages.get(stage).retries.increment();
+    }
+
+    void recordHedge(Stage stage) {
+        stages.get(stage).hedges.increment();
+    }
+
+    void recordModelCall(Stage stage, String model) {
+        stages.get(stage).modelCalls.computeIfAbsent(model, name -> new LongAdder()).increment();
+    }
+
+    void recordRoutingDecision(Stage stage, String model, String reason) {
+        routingDecisions.add(new RoutingDecision(Instant.now(), stage, model, reason));
+    }
+
+    void recordStory(boolean succeeded) {
+        (succeeded ? storiesSucceeded : storiesFailed).increment();
+    }
+
+    long inputTokens() {
+        return stages.values().stream().mapToLong(stats -> stats.inputTokens.sum()).sum();
+    }
+
+    long outputTokens() {
+        return stages.values().stream().mapToLong(stats -> stats.outputTokens.sum()).sum();
+    }
+
+    /**
+     * @return the number of requests sent to the chat and image models, retries and hedges included,
+     * as recorded at each call site, rather than the number of timed stages
+     */
+    long modelCalls() {
+        return stages.values().stream()
+            .flatMap(stats -> stats.modelCalls.values().stream())
+            .mapToLong(LongAdder::sum)
+            .sum();
+    }
+
+    /**
+     * Writes the report in the Prometheus text format if the file name ends with <code>.prom</code>,
+     * and as a JSON document otherwise.
+     */
+    void writeReport(Path reportFile) throws IOException {
+        String report = reportFile.getFileName().toString().endsWith(".prom") ? toPrometheus() : toJson();
+        Files.writeString(reportFile, report);
+    }
+
+    String summary() {
+        StringBuilder summary = new StringBuilder(String.format("%-30s %6s %6s %6s %6s %9s %9s %9s %9s %9s %7s%n",
+            "stage", "calls", "fails", "retry", "hedge", "p50 ms", "p99 ms", "queue p99", "tok in", "tok out", "images"));
+        stages.forEach((stage, stats) -> summary.append(String.format("%-30s %6d %6d %6d %6d %9d %9d %9d %9d %9d %7d%n",
+            stage.label, stats.calls.sum(), stats.failures.sum(), stats.retries.sum(), stats.hedges.sum(),
+            stats.wallMillis.getValueAtPercentile(50), stats.wallMillis.getValueAtPercentile(99),
+            stats.queueMillis.getValueAtPercentile(99),
+            stats.inputTokens.sum(), stats.outputTokens.sum(), stats.images.sum())));
+
+        summary.append(String.format("%nModel calls:%n"));
+        stages.forEach((stage, stats) -> stats.modelCalls.forEach((model, calls) ->
+            summary.append(String.format("%-30s %6d %s%n", stage.label, calls.sum(), model))));
+        if (!routingDecisions.isEmpty()) {
+            summary.append(String.format("%nRouting decisions:%n"));
+            routingDecisions.forEach(decision -> summary.append(String.format("%s %s -> %s: %s%n",
+                decision.at(), decision.stage().label, decision.model(), decision.reason())));
+        }
+        return summary.toString();
+    }
+
+    String toJson() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startedAt", startedAt.toString());
+        report.put("durationSeconds", (System.nanoTime() - startNanos) / 1e9);
+        report.put("storiesSucceeded", storiesSucceeded.sum());
+        report.put("storiesFailed", storiesFailed.sum());
+
+        Map<String, Object> stageReports = new LinkedHashMap<>();
+        stages.forEach((stage, stats) -> {
+            Map<String, Object> stageReport = new LinkedHashMap<>();
+            stageReport.put("calls", stats.calls.sum());
+            stageReport.put("failures", stats.failures.sum());
+            stageReport.put("retries", stats.retries.sum());
+            stageReport.put("hedges", stats.hedges.sum());
+            stageReport.put("wallMillis", percentiles(stats.wallMillis));
+            stageReport.put("queueMillis", percentiles(stats.queueMillis));
+            stageReport.put("inputTokens", stats.inputTokens.sum());
+            stageReport.put("outputTokens", stats.outputTokens.sum());
+            stageReport.put("images", stats.images.sum());
+            Map<String, Long> modelCalls = new LinkedHashMap<>();
+            stats.modelCalls.forEach((model, calls) -> modelCalls.put(model, calls.sum()));
+            stageReport.put("modelCalls", modelCalls);
+            stageReports.put(stage.label, stageReport);
+        });
+        report.put("stages", stageReports);
+        report.put("routingDecisions", routingDecisions.stream().map(decision -> Map.of(
+            "at", decision.at().toString(),
+            "stage", decision.stage().label,
+            "model", decision.model(),
+            "reason", decision.reason())).toList());
+
+        return new GsonBuilder().setPrettyPrinting().create().toJson(report);
+    }
+
+    String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP storygen_stories_total Stories generated, by outcome\n");
+        text.append("# TYPE storygen_stories_total counter\n");
+        text.append("storygen_stories_total{outcome=\"succeeded\"} ").append(storiesSucceeded.sum()).append('\n');
+        text.append("storygen_stories_total{outcome=\"failed\"} ").append(storiesFailed.sum()).append('\n');
+
+        summaryMetric(text, "storygen_stage_wall_seconds", "Wall time of the pipeline stages",
+            stats -> stats.wallMillis, stats -> stats.wallNanosTotal);
+        summaryMetric(text, "storygen_stage_queue_seconds", "Time spent waiting for a model call permit",
+            stats -> stats.queueMillis, stats -> stats.queueNanosTotal);
+
+        counterMetric(text, "storygen_stage_failures_total", "Failed stage executions", stats -> stats.failures);
+        counterMetric(text, "storygen_stage_retries_total", "Retried model calls", stats -> stats.retries);
+        counterMetric(text, "storygen_stage_hedges_total", "Hedged model calls", stats -> stats.hedges);
+        counterMetric(text, "storygen_stage_input_tokens_total", "Input tokens sent to the models", stats -> stats.inputTokens);
+        counterMetric(text, "storygen_stage_output_tokens_total", "Output tokens generated by the models", stats -> stats.outputTokens);
+        counterMetric(text, "storygen_stage_images_total", "Images generated", stats -> stats.images);
+
+        text.append("# HELP storygen_stage_model_calls_total Chat model calls, by stage and routed model\n");
+        text.append("# TYPE storygen_stage_model_calls_total counter\n");
+        stages.forEach((stage, stats) -> stats.modelCalls.forEach((model, calls) ->
+            text.append("storygen_stage_model_calls_total{stage=\"").append(stage.label)
+                .append("\",model=\"").append(model).append("\"} ").append(calls.sum()).append('\n')));
+        text.append("# HELP storygen_routing_decisions_total Changes of the model a stage is routed to\n");
+        text.append("# TYPE storygen_routing_decisions_total counter\n");
+        text.append("storygen_routing_decisions_total ").append(routingDecisions.size()).append('\n');
+
+        return text.toString();
+    }
+
+    private void summaryMetric(StringBuilder text, String name, String help,
+                               Function<StageStats, Histogram> histogram,
+                               Function<StageStats, LongAdder> totalNanos) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        stages.forEach((stage, stats) -> {
+            Histogram values = histogram.apply(stats);
+            for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+                text.append(String.format(Locale.ROOT, "%s{stage=\"%s\",quantile=\"%s\"} %.3f%n",
+                    name, stage.label, quantile, values.getValueAtPercentile(quantile * 100) / 1000.0));
+            }
+            text.append(String.format(Locale.ROOT, "%s_sum{stage=\"%s\"} %.3f%n", name, stage.label, totalNanos.apply(stats).sum() / 1e9));
+            text.append(String.format(Locale.ROOT, "%s_count{stage=\"%s\"} %d%n", name, stage.label, values.getTotalCount()));
+        });
+    }
+
+    private void counterMetric(StringBuilder text, String name, String help,
+                               Function<StageStats, LongAdder> counter) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        stages.forEach((stage, stats) ->
+            text.append(name).append("{stage=\"").append(stage.label).append("\"} ").append(counter.apply(stats).sum()).append('\n'));
+    }
+
+    private static Map<String, Object> percentiles(Histogram histogram) {
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        percentiles.put("count", histogram.getTotalCount());
+        percentiles.put("mean", histogram.getMean());
+        percentiles.put("p50", histogram.getValueAtPercentile(50));
+        percentiles.put("p90", histogram.getValueAtPercentile(90));
+        percentiles.put("p99", histogram.getValueAtPercentile(99));
+        percentiles.put("max", histogram.getMaxValue());
+        return percentiles;
+    }
+}
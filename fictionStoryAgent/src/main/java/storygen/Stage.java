@@ -0,0 +1,45 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.Locale;
+
+/**
+ * The stages of the story pipeline, named after the methods of {@link ExplicitStoryGeneratorAgent} implementing them.
+ */
+enum Stage {
+    STORY("prepareStory"),
+    IMAGE_PROMPTS("prepareImagePrompts"),
+    IMAGE_PROMPT("prepareImagePromptForChapter"),
+    IMAGES("generateImages"),
+    JUDGE("pickBestImageForChapter"),
+    IMAGE_VARIANTS("createImageVariants"),
+    LEGIBILITY("improveChapterLegibility"),
+    SAVE("saveToFirestore");
+
+    final String label;
+
+    Stage(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @param value the stage in lower case, with dashes, eg. <code>image-prompts</code>
+     */
+    static Stage fromOption(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
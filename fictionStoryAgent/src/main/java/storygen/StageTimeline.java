@@ -0,0 +1,81 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Records when each stage of a chapter started and ended,
+ * to visualize which stages ran concurrently, and which ones are on the critical path.
+ */
+class StageTimeline {
+
+    private static final int BAR_WIDTH = 40;
+
+    record StageSpan(String stage, long startNanos, long endNanos) {}
+
+    private final String name;
+    private final long originNanos = System.nanoTime();
+    private final List<StageSpan> spans = new ArrayList<>();
+
+    StageTimeline(String name) {
+        this.name = name;
+    }
+
+    <T> T time(String stage, Supplier<T> work) {
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            long end = System.nanoTime();
+            synchronized (spans) {
+                spans.add(new StageSpan(stage, start - originNanos, end - originNanos));
+            }
+        }
+    }
+
+    /**
+     * Renders the stages as a small Gantt chart, for example:
+     * <pre>
+     * prompt        0.0s →   2.1s |███                                     |
+     * images        2.1s →  14.8s |   ████████████████████                 |
+     * </pre>
+     */
+    String render() {
+        List<StageSpan> sortedSpans;
+        synchronized (spans) {
+            sortedSpans = spans.stream().sorted(Comparator.comparingLong(StageSpan::startNanos)).toList();
+        }
+        long totalNanos = Math.max(1, sortedSpans.stream().mapToLong(StageSpan::endNanos).max().orElse(1));
+
+        StringBuilder timeline = new StringBuilder("Timeline of " + name + " (" + seconds(totalNanos) + "):\n");
+        for (StageSpan span : sortedSpans) {
+            int from = (int) (span.startNanos * BAR_WIDTH / totalNanos);
+            int to = Math.max(from + 1, (int) (span.endNanos * BAR_WIDTH / totalNanos));
+            timeline.append(String.format("  %-12s %6s → %6s |%s%s%s|%n",
+                span.stage, seconds(span.startNanos), seconds(span.endNanos),
+                " ".repeat(from), "█".repeat(to - from), " ".repeat(Math.max(0, BAR_WIDTH - to))));
+        }
+        return timeline.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.1fs", nanos / 1_000_000_000.0);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import storygen.StoryStore.StoredStory;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Exports the saved stories as static pages, for the website to be served from the Firebase Hosting CDN
+ * without reading Firestore on each page view.
+ * <p>
+ * Each story is rendered as <code>stories/&lt;id&gt;.html</code>, with its previous and next stories as links,
+ * and as a <code>stories/&lt;id&gt;.json</code> payload, with the same fields as the Firestore document.
+ * <code>stories/latest.json</code> names the latest story, for the landing page to redirect to its static page
+ * without loading the Firebase SDK, and the JSON payload of a story tells the website that its static page exists.
+ * A manifest keeps the content hash of each exported story, so that only new or changed stories are rendered again,
+ * a story changing when its content, or its previous or next story, changes.
+ * <p>
+ * Besides the export options below, all the options of the story generator are accepted.
+ * With <code>--offline</code>, <code>--count</code> stories are generated with the fake models first, to preview the pages.
+ * <pre>
+ * --output-dir ../public        the directory served by Firebase Hosting
+ * --force                       render all the stories, even the unchanged ones
+ * </pre>
+ */
+public class StaticSiteExporter {
+
+    /** Changing the template changes this version, to render all the stories again */
+    private static final String TEMPLATE_VERSION = "1";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private static final DateTimeFormatter PUBLICATION_DATE =
+        DateTimeFormatter.ofPattern("MMMM d, yyyy", Locale.US).withZone(ZoneOffset.UTC);
+
+    record StoryLink(String id, String title, long createdAt) {}
+
+    record ImageVariant(String image, int width, int height) {}
+
+    record Chapter(String chapterTitle, List<String> paragraphs, String image, List<ImageVariant> imageVariants) {}
+
+    record StoryPage(String id, String title, long createdAt, List<Chapter> chapters, StoryLink previous, StoryLink next) {}
+
+    record ExportResult(int rendered, int unchanged, int removed) {}
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+
+        Path[] outputDirectory = {Path.of("..", "public")};
+        boolean[] force = {false};
+
+        GeneratorOptions options = GeneratorOptions.parse(Arrays.stream(args)
+            .map(arg -> arg.equals("--force") ? "--force=true" : arg)
+            .toArray(String[]::new), (name, value) -> {
+            switch (name) {
+                case "--output-dir" -> outputDirectory[0] = Path.of(value);
+                case "--force" -> force[0] = Boolean.parseBoolean(value);
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        try (var agent = ExplicitStoryGeneratorAgent.create(options)) {
+            if (options.offline) {
+                agent.generateStories(options.storyCount, options.storyConcurrency);
+            }
+            List<StoredStory> stories = agent.storyStore().publishedStories();
+            ExportResult result = export(stories, outputDirectory[0].resolve("stories"), force[0]);
+            System.out.printf("Exported %d stories to %s: %d rendered, %d unchanged, %d removed%n",
+                stories.size(), outputDirectory[0].resolve("stories"), result.rendered(), result.unchanged(), result.removed());
+        }
+    }
+
+    static ExportResult export(List<StoredStory> stories, Path directory, boolean force) throws IOException {
+        Files.createDirectories(directory);
+        Path manifestFile = directory.resolve("manifest.json");
+        Map<String, String> previousHashes = Files.exists(manifestFile) ?
+            GSON.fromJson(Files.readString(manifestFile), new TypeToken<Map<String, String>>() {}.getType()) :
+            Map.of();
+
+        List<StoryLink> links = stories.stream()
+            .map(story -> new StoryLink(story.id(), (String) story.fields().get("title"),
+                ((Number) story.fields().get("createdAt")).longValue()))
+            .toList();
+
+        Map<String, String> hashes = new LinkedHashMap<>();
+        int rendered = 0;
+        for (int i = 0; i < stories.size(); i++) {
+            StoryPage page = toPage(stories.get(i),
+                i > 0 ? links.get(i - 1) : null,
+                i < links.size() - 1 ? links.get(i + 1) : null);
+            String json = GSON.toJson(page);
+            String hash = ExplicitStoryGeneratorAgent.contentHash(TEMPLATE_VERSION + "\n" + json);
+            hashes.put(page.id(), hash);
+
+            Path htmlFile = directory.resolve(page.id() + ".html");
+            Path jsonFile = directory.resolve(page.id() + ".json");
+            if (!force && hash.equals(previousHashes.get(page.id())) && Files.exists(htmlFile) && Files.exists(jsonFile)) {
+                continue;
+            }
+            Files.writeString(jsonFile, json);
+            Files.writeString(htmlFile, renderHtml(page));
+            rendered++;
+        }
+
+        // stories deleted from the store
+        int removed = 0;
+        for (String id : previousHashes.keySet()) {
+            if (!hashes.containsKey(id)) {
+                Files.deleteIfExists(directory.resolve(id + ".html"));
+                Files.deleteIfExists(directory.resolve(id + ".json"));
+                removed++;
+            }
+        }
+
+        Path latestFile = directory.resolve("latest.json");
+        if (links.isEmpty()) {
+            Files.deleteIfExists(latestFile);
+        } else {
+            Files.writeString(latestFile, GSON.toJson(links.getLast()));
+        }
+        Files.writeString(manifestFile, GSON.toJson(hashes));
+        return new ExportResult(rendered, stories.size() - rendered, removed);
+    }
+
+    /**
+     * The fields of the story document, with the chapters of older stories split into paragraphs,
+     * and the Cloud Storage images as public URLs.
+     */
+    private static StoryPage toPage(StoredStory story, StoryLink previous, StoryLink next) {
+        List<Chapter> chapters = new ArrayList<>();
+        if (story.fields().get("chapters") instanceof List<?> chapterFields) {
+            for (Object fields : chapterFields) {
+                Map<?, ?> chapter = (Map<?, ?>) fields;
+                List<String> paragraphs = chapter.get("paragraphs") instanceof List<?> list ?
+                    list.stream().map(String::valueOf).toList() :
+                    Arrays.stream(String.valueOf(chapter.get("chapterContent")).split("\n\n")).toList();
+                List<ImageVariant> variants = chapter.get("imageVariants") instanceof List<?> list ?
+                    list.stream().map(variant -> (Map<?, ?>) variant)
+                        .map(variant -> new ImageVariant(publicUrl((String) variant.get("image")),
+                            ((Number) variant.get("width")).intValue(), ((Number) variant.get("height")).intValue()))
+                        .toList() :
+                    List.of();
+                chapters.add(new Chapter((String) chapter.get("chapterTitle"), paragraphs,
+                    publicUrl((String) chapter.get("image")), variants));
+            }
+        }
+        return new StoryPage(story.id(), (String) story.fields().get("title"),
+            ((Number) story.fields().get("createdAt")).longValue(), chapters, previous, next);
+    }
+
+    /**
+     * The download URL of a <code>gs://</code> image, readable by anyone according to the storage rules.
+     * Other URIs, like the local images of offline runs, are kept as they are.
+     */
+    static String publicUrl(String uri) {
+        if (uri == null || !uri.startsWith("gs://")) {
+            return uri;
+        }
+        String bucketAndPath = uri.substring("gs://".length());
+        int slash = bucketAndPath.indexOf('/');
+        return "https://firebasestorage.googleapis.com/v0/b/" + bucketAndPath.substring(0, slash) +
+            "/o/" + URLEncoder.encode(bucketAndPath.substring(slash + 1), StandardCharsets.UTF_8).replace("+", "%20") +
+            "?alt=media";
+    }
+
+    /**
+     * The same markup as the page rendered by <code>app.js</code>, without the Firebase SDK.
+     */
+    private static String renderHtml(StoryPage page) {
+        String chapters = page.chapters().stream().map(chapter -> {
+            String paragraphs = chapter.paragraphs().stream()
+                .map(paragraph -> "<p>" + escape(paragraph) + "</p>")
+                .collect(Collectors.joining("\n                    "));
+            String srcset = chapter.imageVariants().isEmpty() ? "" :
+                " srcset=\"" + escape(chapter.imageVariants().stream()
+                    .map(variant -> variant.image() + " " + variant.width() + "w")
+                    .collect(Collectors.joining(", "))) + "\" sizes=\"(max-width: 40em) 100vw, 40em\"";
+            return """
+                        <div>
+                            <details%s>
+                                <summary>%s</summary>
+                                <div>
+                                    %s
+                                </div>
+                            </details>
+                            <img src="%s"%s alt="">
+                        </div>
+                """.formatted(chapter == page.chapters().getFirst() ? " open" : "", escape(chapter.chapterTitle()),
+                paragraphs, escape(chapter.image() == null ? "" : chapter.image()), srcset);
+        }).collect(Collectors.joining());
+
+        return """
+            <!DOCTYPE html>
+            <html lang="en">
+            <head>
+                <meta charset="utf-8">
+                <meta name="viewport" content="width=device-width, initial-scale=1">
+                <title>%1$s — Short stories generated by Gemini 2 and Imagen 3</title>
+
+                <link rel="preconnect" href="https://fonts.googleapis.com">
+                <link rel="preconnect" href="https://fonts.gstatic.com" crossorigin>
+                <link href="https://fonts.googleapis.com/css2?family=Arimo:ital,wght@0,400..700;1,400..700&family=Bangers&display=swap"
+                      rel="stylesheet">
+
+                <link href="/styles.css" rel="stylesheet">
+            </head>
+            <body>
+            <div id="story">
+                <h1 id="title">%1$s</h1>
+                <div id="publicationDate">%2$s</div>
+                <div id="navigation">
+                    <div class="prev"%3$s><a href="%4$s">⇦ previous story</a></div>
+                    <div class="next"%5$s><a href="%6$s">next story ⇨</a></div>
+                </div>
+                <div class="chapters">
+            %7$s    </div>
+                <h1 id="end">The End</h1>
+            </div>
+            <div id="nextPrev">
+                <div class="prev"%3$s>
+                    <a href="%4$s">⇦ %8$s</a>
+                </div>
+                <div id="verticalSeparator">&nbsp;</div>
+                <div class="next"%5$s>
+                    <a href="%6$s">%9$s ⇨</a>
+                </div>
+            </div>
+            <section id="footer">
+                <hr>
+                <div>
+                    Made with ❤️ by <a href="https://bsky.app/profile/glaforge.dev">glaforge</a>
+                </div>
+                <div>
+                    📝 <a href="https://glaforge.dev/posts/2025/01/27/an-ai-agent-to-generate-short-scifi-stories/">Article about the project</a>
+                </div>
+                <div>
+                    🐙 <a href="https://github.com/glaforge/short-genai-stories">Code on Github</a>
+                </div>
+            </section>
+            </body>
+            </html>
+            """.formatted(
+            escape(page.title()),
+            PUBLICATION_DATE.format(Instant.ofEpochMilli(page.createdAt())),
+            page.previous() == null ? " style=\"visibility: hidden\"" : "",
+            page.previous() == null ? "#" : "/stories/" + page.previous().id(),
+            page.next() == null ? " style=\"visibility: hidden\"" : "",
+            page.next() == null ? "#" : "/stories/" + page.next().id(),
+            chapters,
+            page.previous() == null ? "" : escape(page.previous().title()),
+            page.next() == null ? "" : escape(page.next().title()));
+    }
+
+    private static String escape(String text) {
+        return text
+            .replace("&", "&amp;")
+            .replace("<", "&lt;")
+            .replace(">", "&gt;")
+            .replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.Timestamp;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Publishes a story progressively: a draft with the text of the story as soon as it's written,
+ * updated each time a chapter is illustrated, and published once all the chapters are done.
+ * <p>
+ * Firestore field paths can't address the elements of an array, so each update rewrites the draft's chapters,
+ * one update at a time, so that a slow write never overwrites a more recent one.
+ * Chapters illustrated before the text is complete, while the story is streamed, are included in the first draft.
+ */
+class StoryDraft {
+
+    private static final Random RANDOM = new Random();
+
+    private final StoryStore storyStore;
+    private final Map<Integer, Story.Chapter> illustratedChapters = new TreeMap<>();
+    private Story story;
+    private String documentId;
+
+    StoryDraft(StoryStore storyStore) {
+        this.storyStore = storyStore;
+    }
+
+    /**
+     * @param resumedDocumentId the document of the draft of a resumed run, or null for a new draft
+     * @return the ID of the draft document
+     */
+    synchronized String publishText(Story story, String resumedDocumentId) throws Exception {
+        this.story = story;
+        this.documentId = resumedDocumentId != null ? resumedDocumentId : StoryStore.documentId(story.title(), RANDOM);
+        storyStore.saveDraft(documentId, currentStory());
+        return documentId;
+    }
+
+    /**
+     * Updates the draft with the illustrated chapter. A failed update doesn't fail the chapter,
+     * as the complete story is written at the end anyway.
+     */
+    synchronized Story.Chapter chapterIllustrated(int index, Story.Chapter chapter) {
+        illustratedChapters.put(index, chapter);
+        if (documentId != null) {
+            try {
+                storyStore.saveDraft(documentId, currentStory());
+            } catch (Exception e) {
+                System.out.println("Couldn't update the draft " + documentId + " with chapter " + (index + 1) + ": " + e.getMessage());
+            }
+        }
+        return chapter;
+    }
+
+    synchronized Timestamp publish(Story completeStory) throws Exception {
+        if (documentId == null) {
+            documentId = StoryStore.documentId(completeStory.title(), RANDOM);
+        }
+        return storyStore.publish(documentId, completeStory);
+    }
+
+    private Story currentStory() {
+        List<Story.Chapter> chapters = new ArrayList<>(story.chapters());
+        illustratedChapters.forEach((index, chapter) -> {
+            if (index < chapters.size()) {
+                chapters.set(index, chapter);
+            }
+        });
+        return new Story(story.title(), chapters);
+    }
+}
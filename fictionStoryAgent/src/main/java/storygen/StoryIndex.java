@@ -0,0 +1,125 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact index of the published stories, for the website to navigate from one story to the next
+ * without querying the story collection on each click.
+ * <p>
+ * The IDs, titles and creation dates of the stories are kept in chronological order,
+ * in chunk documents of up to {@value #CHUNK_SIZE} stories (<code>chunk-00000</code>, <code>chunk-00001</code>...),
+ * and a <code>meta</code> document holds the number of chunks and stories, and the latest story.
+ */
+final class StoryIndex {
+
+    static final String COLLECTION = "short-story-index";
+    static final String META = "meta";
+    static final int CHUNK_SIZE = 500;
+
+    record Entry(String id, String title, long createdAt) {
+
+        Map<String, Object> toFields() {
+            return Map.of("id", id, "title", title, "createdAt", createdAt);
+        }
+
+        static Entry fromFields(Map<?, ?> fields) {
+            return new Entry((String) fields.get("id"), (String) fields.get("title"),
+                ((Number) fields.get("createdAt")).longValue());
+        }
+    }
+
+    /**
+     * The documents to write: the chunks which changed, by chunk number, and the meta document.
+     */
+    record Update(Map<Integer, List<Entry>> chunks, Map<String, Object> meta) {}
+
+    private StoryIndex() {
+    }
+
+    static String chunkId(int chunk) {
+        return String.format("chunk-%05d", chunk);
+    }
+
+    /**
+     * Indexes all the stories, for example the stories published before the index existed.
+     */
+    static Update rebuild(List<Entry> stories) {
+        List<Entry> sorted = stories.stream().sorted(Comparator.comparingLong(Entry::createdAt)).toList();
+        Map<Integer, List<Entry>> chunks = new LinkedHashMap<>();
+        for (int start = 0; start < sorted.size(); start += CHUNK_SIZE) {
+            chunks.put(start / CHUNK_SIZE, sorted.subList(start, Math.min(sorted.size(), start + CHUNK_SIZE)));
+        }
+        return new Update(chunks, metaFields(chunks.size(), sorted.size(), sorted.isEmpty() ? null : sorted.getLast()));
+    }
+
+    /**
+     * Adds a story to the last chunk, or to a new chunk when the last one is full.
+     * Stories saved concurrently can be indexed slightly out of order, so the last chunk is kept sorted.
+     *
+     * @param meta      the fields of the meta document
+     * @param lastChunk the stories of the last chunk
+     * @return the documents to write, or null when the story is already indexed
+     */
+    static Update append(Map<String, Object> meta, List<Entry> lastChunk, Entry story) {
+        if (lastChunk.stream().anyMatch(entry -> entry.id().equals(story.id()))) {
+            return null;
+        }
+        int chunkCount = ((Number) meta.get("chunks")).intValue();
+        long storyCount = ((Number) meta.get("count")).longValue() + 1;
+
+        List<Entry> chunk;
+        int chunkNumber;
+        if (chunkCount == 0 || lastChunk.size() >= CHUNK_SIZE) {
+            chunk = new ArrayList<>();
+            chunkNumber = chunkCount++;
+        } else {
+            chunk = new ArrayList<>(lastChunk);
+            chunkNumber = chunkCount - 1;
+        }
+        chunk.add(story);
+        chunk.sort(Comparator.comparingLong(Entry::createdAt));
+
+        return new Update(Map.of(chunkNumber, chunk), metaFields(chunkCount, storyCount, chunk.getLast()));
+    }
+
+    static Map<String, Object> chunkFields(List<Entry> stories) {
+        return Map.of("stories", stories.stream().map(Entry::toFields).toList());
+    }
+
+    static List<Entry> entries(Map<String, Object> chunkFields) {
+        if (chunkFields == null || !(chunkFields.get("stories") instanceof List<?> stories)) {
+            return List.of();
+        }
+        return stories.stream().map(fields -> Entry.fromFields((Map<?, ?>) fields)).toList();
+    }
+
+    private static Map<String, Object> metaFields(int chunkCount, long storyCount, Entry latest) {
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("chunks", chunkCount);
+        meta.put("chunkSize", CHUNK_SIZE);
+        meta.put("count", storyCount);
+        if (latest != null) {
+            meta.put("latest", latest.toFields());
+        }
+        return meta;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.gson.GsonBuilder;
+import storygen.ExplicitStoryGeneratorAgent.StoryOutcome;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Offline end-to-end benchmark of the story pipeline, with fake models simulating the latency of Gemini and Imagen.
+ * <p>
+ * For each concurrency level (number of stories generated at the same time), it reports the throughput
+ * in stories per minute, the p50 and p99 end-to-end latency of a story, the memory allocated per story,
+ * and the model calls and tokens per story.
+ * Each level is measured in each generation mode, to compare generating paragraphs directly
+ * with splitting the chapters into paragraphs in a second pass.
+ * Latencies are reported in wall-clock time: by default, the fake latencies are a hundredth of the production ones,
+ * rather than scaled down, as dividing the measured time by a latency scale would also multiply the local work
+ * (parsing, hashing, image variants) by the same factor.
+ * The thresholds options make the benchmark fail, to catch scheduling regressions in CI.
+ * <p>
+ * Besides the benchmark options below, all the options of the story generator are accepted:
+ * <pre>
+ * --levels 1,4,16               concurrency levels to measure
+ * --stories-per-level 32        number of stories generated for each level
+ * --modes paragraphs,legibility-pass   generation modes to measure
+ * --report bench.json           where to write the results as JSON
+ * --max-p99-seconds 2           fail if the p99 latency of a level is above this threshold
+ * --min-stories-per-minute 60   fail if the throughput of a level is below this threshold
+ * </pre>
+ */
+public class StoryPipelineBenchmark {
+
+    record LevelResult(String mode, int concurrency, int stories, int failures, double storiesPerMinute,
+                       double p50Seconds, double p99Seconds, long allocatedBytesPerStory,
+                       double modelCallsPerStory, long inputTokensPerStory, long outputTokensPerStory) {}
+
+    private static final String PARAGRAPHS_MODE = "paragraphs";
+    private static final String LEGIBILITY_PASS_MODE = "legibility-pass";
+
+    private static final String CHAT_LATENCY = "lognormal:40ms,0.4";
+    private static final String IMAGE_LATENCY = "lognormal:80ms,0.3";
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+
+        var levels = new ArrayList<>(List.of(1, 4, 16));
+        int[] storiesPerLevel = {32};
+        var modes = new ArrayList<>(List.of(PARAGRAPHS_MODE, LEGIBILITY_PASS_MODE));
+        Path[] reportFile = {null};
+        double[] maxP99Seconds = {Double.MAX_VALUE};
+        double[] minStoriesPerMinute = {0};
+
+        GeneratorOptions options = GeneratorOptions.parse(args, (name, value) -> {
+            switch (name) {
+                case "--levels" -> {
+                    levels.clear();
+                    Arrays.stream(value.split(",")).map(level -> GeneratorOptions.positiveInt(name, level.trim())).forEach(levels::add);
+                }
+                case "--stories-per-level" -> storiesPerLevel[0] = GeneratorOptions.positiveInt(name, value);
+                case "--modes" -> {
+                    modes.clear();
+                    for (String mode : value.split(",")) {
+                        if (!List.of(PARAGRAPHS_MODE, LEGIBILITY_PASS_MODE).contains(mode.trim())) {
+                            throw new IllegalArgumentException("Unknown generation mode: " + mode);
+                        }
+                        modes.add(mode.trim());
+                    }
+                }
+                case "--report" -> reportFile[0] = Path.of(value);
+                case "--max-p99-seconds" -> maxP99Seconds[0] = Double.parseDouble(value);
+                case "--min-stories-per-minute" -> minStoriesPerMinute[0] = Double.parseDouble(value);
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        });
+        options.offline = true;
+        if (Arrays.stream(args).noneMatch(arg -> arg.startsWith("--fake-chat-latency"))) {
+            options.fakeChatLatency = CHAT_LATENCY;
+        }
+        if (Arrays.stream(args).noneMatch(arg -> arg.startsWith("--fake-image-latency"))) {
+            options.fakeImageLatency = IMAGE_LATENCY;
+        }
+
+        PrintStream console = System.out;
+        console.printf("Benchmarking the story pipeline with simulated latencies (chat: %s, images: %s, scale: %s)%n",
+            options.fakeChatLatency, options.fakeImageLatency, options.fakeLatencyScale);
+
+        // warm up the JIT compiler with a few stories, before measuring
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            runLevel(options, modes.getFirst(), levels.getFirst(), Math.min(4, storiesPerLevel[0]));
+
+            List<LevelResult> results = new ArrayList<>();
+            for (String mode : modes) {
+                options.legibilityPass = mode.equals(LEGIBILITY_PASS_MODE);
+                for (int concurrency : levels) {
+                    LevelResult result = runLevel(options, mode, concurrency, storiesPerLevel[0]);
+                    results.add(result);
+                    console.printf("%-15s concurrency %3d: %7.1f stories/min, p50 %6.1fs, p99 %6.1fs, " +
+                            "%,d KB allocated/story, %.1f calls/story, %,d tokens in/story, %,d tokens out/story, %d failures%n",
+                        result.mode, result.concurrency, result.storiesPerMinute, result.p50Seconds, result.p99Seconds,
+                        result.allocatedBytesPerStory / 1024, result.modelCallsPerStory,
+                        result.inputTokensPerStory, result.outputTokensPerStory, result.failures);
+                }
+            }
+
+            if (reportFile[0] != null) {
+                Files.writeString(reportFile[0], new GsonBuilder().setPrettyPrinting().create().toJson(results));
+                console.println("Report written to " + reportFile[0]);
+            }
+
+            List<String> violations = new ArrayList<>();
+            for (LevelResult result : results) {
+                if (result.failures > 0) {
+                    violations.add(result.mode + " concurrency " + result.concurrency + ": " + result.failures + " stories failed");
+                }
+                if (result.p99Seconds > maxP99Seconds[0]) {
+                    violations.add(result.mode + " concurrency " + result.concurrency + ": p99 of " + result.p99Seconds + "s");
+                }
+                if (result.storiesPerMinute < minStoriesPerMinute[0]) {
+                    violations.add(result.mode + " concurrency " + result.concurrency + ": " + result.storiesPerMinute + " stories/min");
+                }
+            }
+            if (!violations.isEmpty()) {
+                violations.forEach(violation -> console.println("Threshold exceeded, " + violation));
+                System.exit(1);
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static LevelResult runLevel(GeneratorOptions options, String mode, int concurrency, int stories) throws Exception {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        try (var agent = ExplicitStoryGeneratorAgent.create(options)) {
+            long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+            long start = System.nanoTime();
+
+            List<StoryOutcome> outcomes = agent.generateStories(stories, concurrency);
+
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            long allocatedBytes = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+            double[] latencies = outcomes.stream()
+                .mapToDouble(outcome -> outcome.duration().toNanos() / 1e9)
+                .sorted()
+                .toArray();
+            int failures = (int) outcomes.stream().filter(outcome -> !outcome.succeeded()).count();
+
+            RunMetrics metrics = agent.metrics();
+            return new LevelResult(mode, concurrency, stories, failures,
+                stories / elapsedSeconds * 60,
+                percentile(latencies, 50), percentile(latencies, 99),
+                allocatedBytes / stories,
+                (double) metrics.modelCalls() / stories,
+                metrics.inputTokens() / stories, metrics.outputTokens() / stories);
+        }
+    }
+
+    private static double percentile(double[] sortedValues, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, rank))];
+    }
+}
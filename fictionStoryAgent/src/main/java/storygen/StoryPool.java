@@ -0,0 +1,217 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import storygen.ExplicitStoryGeneratorAgent.PooledStory;
+import storygen.ExplicitStoryGeneratorAgent.SavedStory;
+import storygen.ExplicitStoryGeneratorAgent.StoryType;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SequencedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A small pool of ready-made stories, so that a story can be served as soon as it's requested.
+ * <p>
+ * The stories of the pool are saved as drafts, which the website doesn't show,
+ * and are only published when they're served, so that an idle service doesn't publish anything.
+ * The pool is filled lazily: only the story types which were requested get ready stories,
+ * the most recently requested first, and the whole pool never holds more than a few stories,
+ * so that starting the service doesn't generate a story of every type.
+ * Refilling the pool generates at most a few stories at the same time, so that it doesn't starve the on-demand requests.
+ */
+class StoryPool implements AutoCloseable {
+
+    interface StorySource {
+        /**
+         * Generates a story kept unpublished until it's taken from the pool.
+         */
+        PooledStory prepare(StoryType storyType) throws Exception;
+
+        SavedStory publish(PooledStory story) throws Exception;
+
+        /**
+         * Generates and publishes a story, when the pool of the requested type is empty.
+         */
+        SavedStory generate(StoryType storyType) throws Exception;
+    }
+
+    record TakenStory(StoryType storyType, SavedStory story, boolean fromPool) {}
+
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+    private final int size;
+    private final int maxStories;
+    private final StorySource source;
+    private final Semaphore refillPermits;
+    private final Map<StoryType, Deque<PooledStory>> ready = new EnumMap<>(StoryType.class);
+    private final Map<StoryType, Integer> pending = new EnumMap<>(StoryType.class);
+    private final SequencedSet<StoryType> requested = new LinkedHashSet<>();
+    private final ExecutorService refillExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * @param size              the number of ready stories kept for each requested type
+     * @param maxStories        the maximum number of ready or pending stories of the whole pool
+     * @param refillConcurrency the maximum number of stories generated at the same time to refill the pool
+     */
+    StoryPool(Collection<StoryType> storyTypes, int size, int maxStories, int refillConcurrency, StorySource source) {
+        this.size = size;
+        this.maxStories = maxStories;
+        this.source = source;
+        this.refillPermits = new Semaphore(refillConcurrency);
+        storyTypes.forEach(storyType -> {
+            ready.put(storyType, new ArrayDeque<>());
+            pending.put(storyType, 0);
+        });
+    }
+
+    /**
+     * Starts filling the pool of each story type, without waiting for them to be requested,
+     * for a pool of a single story type.
+     */
+    synchronized void fill() {
+        requested.addAll(ready.keySet());
+        refill();
+    }
+
+    /**
+     * Takes and publishes a ready story of the given type, or generates one when the pool of this type is empty.
+     *
+     * @param storyType the type of story, or null for a ready story of any type
+     */
+    TakenStory take(StoryType storyType) throws Exception {
+        PooledStory pooled;
+        synchronized (this) {
+            if (storyType == null) {
+                storyType = anyStoryType();
+            } else if (!ready.containsKey(storyType)) {
+                throw new IllegalArgumentException("No pool of " + storyType + " stories");
+            }
+            requested.remove(storyType);
+            requested.addLast(storyType);
+            pooled = ready.get(storyType).poll();
+            refill();
+        }
+        if (pooled == null) {
+            return new TakenStory(storyType, source.generate(storyType), false);
+        }
+        try {
+            return new TakenStory(storyType, source.publish(pooled), true);
+        } catch (Exception e) {
+            // the draft is still saved, so it's served by the next request instead
+            synchronized (this) {
+                ready.get(storyType).addFirst(pooled);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the pool keeps stories of the given type
+     */
+    synchronized boolean hasPool(StoryType storyType) {
+        return ready.containsKey(storyType);
+    }
+
+    /**
+     * @return the number of ready stories of each type
+     */
+    synchronized Map<StoryType, Integer> readyStories() {
+        Map<StoryType, Integer> counts = new LinkedHashMap<>();
+        ready.forEach((storyType, stories) -> counts.put(storyType, stories.size()));
+        return counts;
+    }
+
+    /**
+     * A type with a ready story if there's one, or else any type.
+     */
+    private StoryType anyStoryType() {
+        List<StoryType> storyTypes = new ArrayList<>(ready.keySet().stream()
+            .filter(storyType -> !ready.get(storyType).isEmpty())
+            .toList());
+        if (storyTypes.isEmpty()) {
+            storyTypes.addAll(ready.keySet());
+        }
+        return storyTypes.get(ThreadLocalRandom.current().nextInt(storyTypes.size()));
+    }
+
+    private synchronized void refill() {
+        if (refillExecutor.isShutdown()) {
+            return;
+        }
+        int stories = ready.values().stream().mapToInt(Queue::size).sum() +
+            pending.values().stream().mapToInt(Integer::intValue).sum();
+        for (StoryType storyType : requested.reversed()) {
+            while (stories < maxStories && ready.get(storyType).size() + pending.get(storyType) < size) {
+                pending.merge(storyType, 1, Integer::sum);
+                stories++;
+                refillExecutor.submit(() -> prepareInto(storyType));
+            }
+        }
+    }
+
+    private void prepareInto(StoryType storyType) {
+        boolean failed = false;
+        try {
+            refillPermits.acquire();
+            try {
+                PooledStory story = source.prepare(storyType);
+                synchronized (this) {
+                    ready.get(storyType).add(story);
+                }
+            } finally {
+                refillPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            System.out.println("Couldn't refill the pool of " + storyType + " stories: " + e.getMessage());
+            failed = true;
+        } finally {
+            synchronized (this) {
+                pending.merge(storyType, -1, Integer::sum);
+            }
+        }
+        if (failed) {
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        refill();
+    }
+
+    @Override
+    public void close() {
+        refillExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import storygen.ExplicitStoryGeneratorAgent.PooledStory;
+import storygen.ExplicitStoryGeneratorAgent.SavedStory;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+import storygen.ExplicitStoryGeneratorAgent.StoryType;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Long-running HTTP service around the story pipeline, to serve a story on demand rather than once a day.
+ * <p>
+ * A {@link StoryPool} keeps a few ready-made stories of the requested types, unpublished until they're served,
+ * and refilled in the background, so that a request is answered immediately, unless the pool of the requested type is empty.
+ * <pre>
+ * GET /story?type=time-travel   a story of the given type, or of any type
+ * GET /pool                     the number of ready stories of each type
+ * </pre>
+ * Besides the service options below, all the options of the story generator are accepted,
+ * <code>--story-type</code> limiting the pool to a single type of story, filled as soon as the service starts.
+ * <pre>
+ * --port 8080                   the HTTP port, or the PORT environment variable set by Cloud Run
+ * --pool-size 1                 number of ready stories kept for each requested story type
+ * --pool-max-stories 3          maximum number of ready stories of all types
+ * --pool-refill-concurrency 2   maximum number of stories generated at the same time to refill the pools
+ * --training-run                serve a single story, and make a call with each real client, failing without credentials,
+ *                               then exit, to record the classes to archive for a faster startup
+ * </pre>
+ */
+public class StoryService {
+
+    private static final Gson GSON = new Gson();
+
+    record StoryResponse(String storyType, String title, String savedAt, boolean fromPool, List<Story.Chapter> chapters) {}
+
+    public static void main(String[] args) throws Exception {
+        long mainStartedAt = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+
+        int[] port = {Integer.parseInt(System.getenv().getOrDefault("PORT", "8080"))};
+        int[] poolSize = {1};
+        int[] poolMaxStories = {3};
+        int[] refillConcurrency = {2};
+        boolean[] trainingRun = {false};
+
+        GeneratorOptions options = GeneratorOptions.parse(Arrays.stream(args)
+            .map(arg -> arg.equals("--training-run") ? "--training-run=true" : arg)
+            .toArray(String[]::new), (name, value) -> {
+            switch (name) {
+                case "--port" -> port[0] = Integer.parseInt(value);
+                case "--pool-size" -> poolSize[0] = GeneratorOptions.positiveInt(name, value);
+                case "--pool-max-stories" -> poolMaxStories[0] = GeneratorOptions.positiveInt(name, value);
+                case "--pool-refill-concurrency" -> refillConcurrency[0] = GeneratorOptions.positiveInt(name, value);
+                case "--training-run" -> trainingRun[0] = Boolean.parseBoolean(value);
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        List<StoryType> storyTypes = options.storyType != null ? List.of(StoryType.valueOf(options.storyType)) :
+            trainingRun[0] ? List.of(StoryType.values()[0]) :
+                List.of(StoryType.values());
+
+        var agent = ExplicitStoryGeneratorAgent.create(options);
+        var pool = new StoryPool(storyTypes, poolSize[0], poolMaxStories[0], refillConcurrency[0], new StoryPool.StorySource() {
+            @Override
+            public PooledStory prepare(StoryType storyType) throws Exception {
+                return agent.generateUnpublishedStory(storyType);
+            }
+
+            @Override
+            public SavedStory publish(PooledStory story) throws Exception {
+                return agent.publishPooledStory(story);
+            }
+
+            @Override
+            public SavedStory generate(StoryType storyType) throws Exception {
+                return agent.generateStory(storyType);
+            }
+        });
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(trainingRun[0] ? 0 : port[0]), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/story", exchange -> serveStory(exchange, pool));
+        server.createContext("/pool", exchange -> respond(exchange, 200, GSON.toJson(pool.readyStories())));
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            pool.close();
+            try {
+                agent.close();
+            } catch (Exception e) {
+                System.out.println("Couldn't close the story generator: " + e.getMessage());
+            }
+            stopped.countDown();
+        }));
+
+        server.start();
+        System.out.printf("Story service listening on port %d, started in %d ms (main entered after %d ms)%n",
+            server.getAddress().getPort(), ManagementFactory.getRuntimeMXBean().getUptime(), mainStartedAt);
+
+        if (storyTypes.size() == 1 && !trainingRun[0]) {
+            pool.fill();
+        }
+
+        if (trainingRun[0]) {
+            try (HttpClient client = HttpClient.newHttpClient()) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                        URI.create("http://localhost:" + server.getAddress().getPort() + "/story")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+                System.out.println("Training run served a story: HTTP " + response.statusCode());
+            }
+            ExplicitStoryGeneratorAgent.loadClientClasses(options);
+            System.exit(0);
+        }
+        stopped.await();
+    }
+
+    private static void serveStory(HttpExchange exchange, StoryPool pool) throws IOException {
+        StoryType storyType = null;
+        String type = queryParameters(exchange.getRequestURI()).get("type");
+        if (type != null) {
+            try {
+                storyType = StoryType.valueOf(type.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, GSON.toJson(Map.of("error", "Unknown story type " + type)));
+                return;
+            }
+            if (!pool.hasPool(storyType)) {
+                respond(exchange, 400, GSON.toJson(Map.of("error", "No pool of " + storyType + " stories")));
+                return;
+            }
+        }
+
+        try {
+            StoryPool.TakenStory taken = pool.take(storyType);
+            respond(exchange, 200, GSON.toJson(new StoryResponse(taken.storyType().name(), taken.story().story().title(),
+                taken.story().savedAt().toString(), taken.fromPool(), taken.story().story().chapters())));
+        } catch (Exception e) {
+            System.out.println("Couldn't serve a story: " + e.getMessage());
+            respond(exchange, 500, GSON.toJson(Map.of("error", String.valueOf(e.getMessage()))));
+        }
+    }
+
+    private static Map<String, String> queryParameters(URI uri) {
+        if (uri.getQuery() == null) {
+            return Map.of();
+        }
+        return Arrays.stream(uri.getQuery().split("&"))
+            .map(parameter -> parameter.split("=", 2))
+            .filter(parameter -> parameter.length == 2)
+            .collect(Collectors.toMap(parameter -> parameter[0], parameter -> parameter[1], (a, b) -> b));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.cloud.Timestamp;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Where generated stories are published.
+ * Implemented by {@link FirestoreStoryStore}, read by the website,
+ * and by {@link InMemoryStoryStore} to run the pipeline offline.
+ */
+interface StoryStore extends AutoCloseable {
+
+    String COLLECTION = "short-story";
+
+    String STATUS_DRAFT = "draft";
+    String STATUS_COMPLETE = "complete";
+
+    /**
+     * A saved story document, with the fields written by {@link #toDocument(Story, long)}.
+     */
+    record StoredStory(String id, Map<String, Object> fields) {}
+
+    /**
+     * @return the time at which the story was saved
+     */
+    Timestamp save(Story story) throws Exception;
+
+    /**
+     * Writes a story whose chapters are still being illustrated.
+     * A draft has no <code>createdAt</code> field, so the website queries ordered by creation date don't see it.
+     */
+    void saveDraft(String documentId, Story story) throws Exception;
+
+    /**
+     * Replaces the draft of a story with the complete story.
+     *
+     * @return the time at which the story was saved
+     */
+    Timestamp publish(String documentId, Story story) throws Exception;
+
+    /**
+     * @return the complete stories, drafts excluded, from the oldest to the most recent
+     */
+    List<StoredStory> publishedStories() throws Exception;
+
+    /**
+     * @return the signatures of the {@link DuplicateStoryIndex}, or null when they were never saved
+     */
+    List<DuplicateStoryIndex.Entry> duplicateIndexEntries() throws Exception;
+
+    /**
+     * Appends signatures to the {@link DuplicateStoryIndex}, marking it as saved even when there are none.
+     */
+    void addDuplicateIndexEntries(List<DuplicateStoryIndex.Entry> entries) throws Exception;
+
+    @Override
+    default void close() throws Exception {
+    }
+
+    /**
+     * A readable and unique document ID, made of the title and a random number.
+     */
+    static String documentId(String title, Random random) {
+        return Normalizer
+            .normalize(title + "-" + Math.abs(random.nextInt()), Normalizer.Form.NFD)
+            .toLowerCase()
+            .replaceAll("\\p{IsM}+", "")
+            .replaceAll("\\p{IsP}+", " ")
+            .trim()
+            .replaceAll("\\s+", "-");
+    }
+
+    /**
+     * The fields of a story document, as read by the website.
+     */
+    static Map<String, Object> toDocument(Story story, long createdAt) {
+        return Map.of(
+            "title", story.title(),
+            "status", STATUS_COMPLETE,
+            "createdAt", createdAt,
+            "chapters", story.chapters().stream().map(StoryStore::toChapterFields).toList()
+        );
+    }
+
+    /**
+     * The fields of a draft story document, whose chapters may not have their images yet.
+     */
+    static Map<String, Object> toDraftDocument(Story story) {
+        return Map.of(
+            "title", story.title(),
+            "status", STATUS_DRAFT,
+            "chapters", story.chapters().stream().map(StoryStore::toChapterFields).toList()
+        );
+    }
+
+    static boolean isComplete(Map<String, Object> fields) {
+        // stories saved before drafts existed have no status
+        return fields.containsKey("createdAt") && !STATUS_DRAFT.equals(fields.get("status"));
+    }
+
+    private static Map<String, Object> toChapterFields(Story.Chapter chapter) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("chapterTitle", chapter.chapterTitle());
+        fields.put("chapterContent", chapter.chapterContent());
+        if (chapter.paragraphs() != null) {
+            fields.put("paragraphs", chapter.paragraphs());
+        }
+        if (chapter.gcsURI() != null) {
+            fields.put("image", chapter.gcsURI());
+        }
+        if (chapter.imageVariants() != null) {
+            fields.put("imageVariants", chapter.imageVariants().stream().map(variant ->
+                Map.of(
+                    "image", variant.uri(),
+                    "width", variant.width(),
+                    "height", variant.height()
+                )).toList());
+        }
+        return fields;
+    }
+}
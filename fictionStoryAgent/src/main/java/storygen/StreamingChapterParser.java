@@ -0,0 +1,111 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import java.util.function.Consumer;
+
+/**
+ * Incremental scanner over the streamed JSON story, following the <code>title</code> / <code>chapters</code> schema.
+ * <p>
+ * Tokens are fed as they arrive from the model, and each time an object of the <code>chapters</code> array
+ * is complete, its JSON text is handed over to the callback, while the following chapters are still being written.
+ * The scanner only tracks string literals and nesting levels, the actual parsing is left to Gson.
+ */
+class StreamingChapterParser {
+
+    private final Consumer<String> onChapterJson;
+    private final StringBuilder text = new StringBuilder();
+
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private int stringStart = -1;
+    private String lastRootString;
+    private String lastRootKey;
+    /** Nesting level of the chapters array, or -1 when not inside it */
+    private int chaptersDepth = -1;
+    private int chapterStart = -1;
+    private int chapterCount = 0;
+
+    StreamingChapterParser(Consumer<String> onChapterJson) {
+        this.onChapterJson = onChapterJson;
+    }
+
+    synchronized void feed(String token) {
+        int offset = text.length();
+        text.append(token);
+        for (int i = offset; i < text.length(); i++) {
+            scan(text.charAt(i), i);
+        }
+    }
+
+    synchronized String text() {
+        return text.toString();
+    }
+
+    synchronized int chapterCount() {
+        return chapterCount;
+    }
+
+    private void scan(char c, int position) {
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+                if (depth == 1) {
+                    lastRootString = text.substring(stringStart + 1, position);
+                }
+            }
+            return;
+        }
+
+        switch (c) {
+            case '"' -> {
+                inString = true;
+                stringStart = position;
+            }
+            case ':' -> {
+                if (depth == 1) {
+                    lastRootKey = lastRootString;
+                }
+            }
+            case '{', '[' -> {
+                depth++;
+                if (c == '[' && depth == 2 && "chapters".equals(lastRootKey)) {
+                    chaptersDepth = depth;
+                } else if (c == '{' && chaptersDepth != -1 && depth == chaptersDepth + 1) {
+                    chapterStart = position;
+                }
+            }
+            case '}', ']' -> {
+                if (c == '}' && chaptersDepth != -1 && depth == chaptersDepth + 1 && chapterStart != -1) {
+                    String chapterJson = text.substring(chapterStart, position + 1);
+                    chapterStart = -1;
+                    chapterCount++;
+                    onChapterJson.accept(chapterJson);
+                } else if (c == ']' && depth == chaptersDepth) {
+                    chaptersDepth = -1;
+                }
+                depth--;
+            }
+            default -> {
+            }
+        }
+    }
+}
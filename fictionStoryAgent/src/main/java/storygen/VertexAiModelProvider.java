@@ -0,0 +1,78 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.api.gax.rpc.InvalidArgumentException;
+import com.google.cloud.vertexai.api.Schema;
+import dev.langchain4j.data.image.Image;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.output.Response;
+
+import java.util.List;
+
+/**
+ * Gemini and Imagen models on Vertex AI, built from the shared {@link ClientRegistry}.
+ */
+class VertexAiModelProvider implements ModelProvider {
+
+    private final ClientRegistry clients;
+
+    VertexAiModelProvider(ClientRegistry clients) {
+        this.clients = clients;
+    }
+
+    @Override
+    public Response<AiMessage> chat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages) {
+        return clients.chatModel(modelName, temperature, responseSchema).generate(messages);
+    }
+
+    @Override
+    public void streamChat(String modelName, Float temperature, Schema responseSchema, List<ChatMessage> messages,
+                           StreamingResponseHandler<AiMessage> handler) {
+        clients.streamingChatModel(modelName, temperature, responseSchema).generate(messages, handler);
+    }
+
+    @Override
+    public List<String> generateImages(String modelName, String prompt, int count) {
+        Response<List<Image>> imageResponse;
+        try {
+            imageResponse = clients.imageModel(modelName).generate(prompt, count);
+        } catch (InvalidArgumentException e) {
+            // Imagen rejects the prompts against its Responsible AI practices as invalid arguments
+            throw new ResilientCalls.ModelCallException(ResilientCalls.FailureKind.SAFETY,
+                "Imagen refused the prompt: " + e.getMessage(), e);
+        }
+        if (imageResponse.content() == null || imageResponse.content().isEmpty()) {
+            throw new ResilientCalls.ModelCallException(ResilientCalls.FailureKind.SAFETY,
+                "All the images were filtered out by the safety filters");
+        }
+        return imageResponse.content().stream()
+            .map(image -> image.url().toString())
+            .toList();
+    }
+
+    @Override
+    public List<String> stats() {
+        return clients.stats().stream().map(ClientRegistry.ClientStats::toString).toList();
+    }
+
+    @Override
+    public void close() throws Exception {
+        clients.close();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import org.junit.jupiter.api.Test;
+import storygen.DuplicateStoryIndex.Entry;
+import storygen.DuplicateStoryIndex.Match;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateStoryIndexTest {
+
+    private static final double THRESHOLD = 0.5;
+
+    private static final Story LIGHTHOUSE = story("The Last Keeper", """
+        The lighthouse keeper of the outer moon climbed the spiral stairs every night to polish the great lens, \
+        although no ship had crossed the ice fields for a hundred years. One winter a faint signal answered her beam \
+        from beyond the rings, and she spent the long dark decoding it on the old radio of the station.""");
+
+    private static final Story LIGHTHOUSE_RETOLD = story("The Last Keeper", """
+        The lighthouse keeper of the outer moon climbed the spiral stairs every night to polish the great lens, \
+        although no ship had crossed the ice fields for a thousand years. One winter a faint signal answered her beam \
+        from beyond the rings, and she spent the long night decoding it on the old radio of the station.""");
+
+    private static final Story GARDEN = story("Seeds of Mars", """
+        Twelve botanists sealed themselves inside a glass dome on the red plains, betting their careers \
+        on a strain of barley engineered to drink perchlorate. When the first green shoots broke the dust, \
+        a sandstorm tore the power lines apart and they had three days to keep the seedlings warm.""");
+
+    private final InMemoryStoryStore storyStore = new InMemoryStoryStore();
+
+    @Test
+    void rejectsANearDuplicateOfAnIndexedStory() throws Exception {
+        var index = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+        assertEquals(Optional.empty(), index.addIfOriginal(LIGHTHOUSE));
+
+        Optional<Match> match = index.addIfOriginal(LIGHTHOUSE_RETOLD);
+
+        assertTrue(match.isPresent());
+        assertEquals("The Last Keeper", match.get().title());
+        assertTrue(match.get().similarity() >= THRESHOLD);
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void acceptsAnUnrelatedStory() throws Exception {
+        var index = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+        index.addIfOriginal(LIGHTHOUSE);
+
+        assertEquals(Optional.empty(), index.addIfOriginal(GARDEN));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void acceptsTextsTooShortToCompareWithoutIndexingThem() throws Exception {
+        var index = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+
+        assertEquals(Optional.empty(), index.addIfOriginal(new Story("Void", List.of())));
+        assertEquals(Optional.empty(), index.addIfOriginal(new Story("Void", List.of())));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void aForgottenStoryNoLongerKeepsSimilarStoriesOut() throws Exception {
+        var index = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+        index.addIfOriginal(LIGHTHOUSE);
+
+        index.forget(LIGHTHOUSE);
+
+        assertEquals(0, index.size());
+        assertEquals(Optional.empty(), index.addIfOriginal(LIGHTHOUSE_RETOLD));
+    }
+
+    @Test
+    void onlySavedSignaturesAreLoadedByTheNextRun() throws Exception {
+        var index = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+        index.addIfOriginal(LIGHTHOUSE);
+        index.addIfOriginal(GARDEN);
+        index.saveAccepted(LIGHTHOUSE);
+
+        var nextIndex = DuplicateStoryIndex.open(THRESHOLD, storyStore);
+
+        assertEquals(1, nextIndex.size());
+        assertTrue(nextIndex.addIfOriginal(LIGHTHOUSE_RETOLD).isPresent());
+        assertEquals(Optional.empty(), nextIndex.addIfOriginal(GARDEN));
+    }
+
+    @Test
+    void appendRollsOverToANewChunkOnceTheLastOneIsFull() {
+        List<Entry> lastChunk = entries(0, DuplicateStoryIndex.CHUNK_SIZE - 1);
+        List<Entry> newEntries = entries(DuplicateStoryIndex.CHUNK_SIZE - 1, 3);
+
+        DuplicateStoryIndex.Update update = DuplicateStoryIndex.append(3, lastChunk, newEntries);
+
+        assertEquals(List.of(2, 3), List.copyOf(update.chunks().keySet()));
+        assertEquals(entries(0, DuplicateStoryIndex.CHUNK_SIZE), update.chunks().get(2));
+        assertEquals(entries(DuplicateStoryIndex.CHUNK_SIZE, 2), update.chunks().get(3));
+        assertEquals(4, update.meta().get("chunks"));
+    }
+
+    @Test
+    void appendSkipsTheEntriesOfARetriedSave() {
+        List<Entry> lastChunk = entries(0, 2);
+
+        DuplicateStoryIndex.Update update = DuplicateStoryIndex.append(1, lastChunk, entries(1, 2));
+
+        assertEquals(Map.of(0, entries(0, 3)), update.chunks());
+        assertEquals(1, update.meta().get("chunks"));
+    }
+
+    @Test
+    void keepsEveryEntryAcrossChunks() throws Exception {
+        int count = 2 * DuplicateStoryIndex.CHUNK_SIZE + 500;
+        for (int start = 0; start < count; start += 700) {
+            storyStore.addDuplicateIndexEntries(entries(start, Math.min(700, count - start)));
+        }
+
+        assertEquals(entries(0, count), storyStore.duplicateIndexEntries());
+    }
+
+    private static Story story(String title, String content) {
+        return new Story(title, List.of(new Story.Chapter("Chapter one", content, null, null, null)));
+    }
+
+    private static List<Entry> entries(int start, int count) {
+        return IntStream.range(start, start + count)
+            .mapToObj(i -> new Entry("Story " + i,
+                DuplicateStoryIndex.encode(DuplicateStoryIndex.signature("story number " + i + " of the index"))))
+            .toList();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResponseCacheTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private final AtomicInteger invocations = new AtomicInteger();
+
+    @Test
+    void writesLengthPrefixedRecordsAndFixedSizeIndexSlots() throws Exception {
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            cache.images("imagen", "a red robot", 4, images(0));
+            cache.images("imagen", "a blue robot", 4, images(1));
+        }
+
+        byte[] firstKey = sha256("images\nimagen\n4\na red robot");
+        byte[] firstValue = "{\"prompt\":\"a red robot\",\"imageUris\":[\"gs://bucket/image-0.png\"]}".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("responses.log")));
+        assertArrayEquals(firstKey, bytes(log, 32));
+        assertEquals(firstValue.length, log.getInt());
+        assertArrayEquals(firstValue, bytes(log, firstValue.length));
+
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("responses.idx")));
+        assertEquals(2 * (32 + 8 + 4), index.capacity());
+        assertArrayEquals(firstKey, bytes(index, 32));
+        assertEquals(0L, index.getLong());
+        assertEquals(firstValue.length, index.getInt());
+        assertArrayEquals(sha256("images\nimagen\n4\na blue robot"), bytes(index, 32));
+        assertEquals(32 + 4 + firstValue.length, index.getLong());
+    }
+
+    @Test
+    void replaysTheResponsesAfterReopening() throws Exception {
+        List<ChatMessage> messages = List.of(SystemMessage.from("You write stories."), UserMessage.from("A space opera"));
+        try (var cache = ResponseCache.open(ResponseCache.Mode.WRITE_ONLY, directory, MAX_SIZE)) {
+            cache.chat("gemini", 1.5f, null, messages, () -> {
+                invocations.incrementAndGet();
+                return Response.from(AiMessage.from("{\"title\": \"Stars\"}"), new TokenUsage(12, 34));
+            });
+            cache.images("imagen", "a red robot", 4, images(0));
+        }
+
+        // a replay-only cache is a fixture: the models are never called
+        try (var cache = ResponseCache.open(ResponseCache.Mode.REPLAY_ONLY, directory, MAX_SIZE)) {
+            Response<AiMessage> response = cache.chat("gemini", 1.5f, null, messages, this::unexpectedCall);
+            assertEquals("{\"title\": \"Stars\"}", response.content().text());
+            assertEquals(12, response.tokenUsage().inputTokenCount());
+            assertEquals(34, response.tokenUsage().outputTokenCount());
+            assertEquals(List.of("gs://bucket/image-0.png"), cache.images("imagen", "a red robot", 4, this::unexpectedCall));
+
+            assertThrows(IllegalStateException.class, () -> cache.chat("gemini", 1.0f, null, messages, this::unexpectedCall));
+            assertThrows(IllegalStateException.class, () -> cache.images("imagen", "a red robot", 1, this::unexpectedCall));
+        }
+        assertEquals(2, invocations.get());
+    }
+
+    @Test
+    void rebuildsTheIndexWhenItIsMissing() throws Exception {
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            cache.images("imagen", "a red robot", 4, images(0));
+            cache.images("imagen", "a blue robot", 4, images(1));
+        }
+        Files.delete(directory.resolve("responses.idx"));
+
+        try (var cache = ResponseCache.open(ResponseCache.Mode.REPLAY_ONLY, directory, MAX_SIZE)) {
+            assertEquals(List.of("gs://bucket/image-0.png"), cache.images("imagen", "a red robot", 4, this::unexpectedCall));
+            assertEquals(List.of("gs://bucket/image-1.png"), cache.images("imagen", "a blue robot", 4, this::unexpectedCall));
+        }
+        assertEquals(2 * (32 + 8 + 4), Files.size(directory.resolve("responses.idx")));
+    }
+
+    @Test
+    void dropsATruncatedRecordAtTheEndOfTheLog() throws Exception {
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            cache.images("imagen", "a red robot", 4, images(0));
+        }
+        long firstRecordSize = Files.size(directory.resolve("responses.log"));
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            cache.images("imagen", "a blue robot", 4, images(1));
+        }
+        // a run killed in the middle of an append
+        try (var log = FileChannel.open(directory.resolve("responses.log"), StandardOpenOption.WRITE)) {
+            log.truncate(log.size() - 5);
+        }
+
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            assertEquals(List.of("gs://bucket/image-0.png"), cache.images("imagen", "a red robot", 4, this::unexpectedCall));
+            assertEquals(firstRecordSize, Files.size(directory.resolve("responses.log")));
+            // the truncated response is asked to the model again
+            assertEquals(List.of("gs://bucket/image-2.png"), cache.images("imagen", "a blue robot", 4, images(2)));
+        }
+        assertEquals(3, invocations.get());
+    }
+
+    @Test
+    void compactsTheLogKeepingTheMostRecentlyUsedResponses() throws Exception {
+        long recordSize;
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, MAX_SIZE)) {
+            cache.images("imagen", "prompt 0", 4, images(0));
+            recordSize = Files.size(directory.resolve("responses.log"));
+        }
+        Files.delete(directory.resolve("responses.log"));
+        Files.delete(directory.resolve("responses.idx"));
+
+        // compacted down to half of the maximum size, that is 2 responses, once the 6th one is written
+        long maxSize = 5 * recordSize + recordSize / 2;
+        try (var cache = ResponseCache.open(ResponseCache.Mode.READ_THROUGH, directory, maxSize)) {
+            for (int i = 0; i < 5; i++) {
+                cache.images("imagen", "prompt " + i, 4, images(i));
+            }
+            cache.images("imagen", "prompt 0", 4, this::unexpectedCall);
+            cache.images("imagen", "prompt 5", 4, images(5));
+            assertEquals(2 * recordSize, Files.size(directory.resolve("responses.log")));
+        }
+
+        try (var cache = ResponseCache.open(ResponseCache.Mode.REPLAY_ONLY, directory, maxSize)) {
+            assertEquals(List.of("gs://bucket/image-5.png"), cache.images("imagen", "prompt 5", 4, this::unexpectedCall));
+            assertEquals(List.of("gs://bucket/image-0.png"), cache.images("imagen", "prompt 0", 4, this::unexpectedCall));
+            assertThrows(IllegalStateException.class, () -> cache.images("imagen", "prompt 4", 4, this::unexpectedCall));
+        }
+        assertEquals(2 * (32 + 8 + 4), Files.size(directory.resolve("responses.idx")));
+    }
+
+    private Supplier<List<String>> images(int number) {
+        return () -> {
+            invocations.incrementAndGet();
+            return List.of("gs://bucket/image-" + number + ".png");
+        };
+    }
+
+    private <T> T unexpectedCall() {
+        throw new AssertionError("The model was called rather than the cache");
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha256(String text) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
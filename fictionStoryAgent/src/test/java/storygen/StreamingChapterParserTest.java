@@ -0,0 +1,94 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package storygen;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import storygen.ExplicitStoryGeneratorAgent.Story;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingChapterParserTest {
+
+    private static final Gson GSON = new Gson();
+
+    private final List<String> chapters = new ArrayList<>();
+    private final StreamingChapterParser parser = new StreamingChapterParser(chapters::add);
+
+    @Test
+    void handsOverEachChapterAsSoonAsItIsComplete() {
+        parser.feed("{\"title\": \"The Signal\", \"chapters\": [{\"chapterTitle\": \"One\", \"chapterContent\": \"First.\"}");
+        assertEquals(List.of("{\"chapterTitle\": \"One\", \"chapterContent\": \"First.\"}"), chapters);
+
+        parser.feed(", {\"chapterTitle\": \"Two\", \"chapterContent\": \"Second.\"");
+        assertEquals(1, chapters.size());
+
+        parser.feed("}]}");
+        assertEquals(2, parser.chapterCount());
+        assertEquals("{\"chapterTitle\": \"Two\", \"chapterContent\": \"Second.\"}", chapters.get(1));
+    }
+
+    @Test
+    void ignoresQuotesAndBracketsInsideStrings() {
+        String chapter = """
+            {"chapterTitle": "The \\"}\\" door", "chapterContent": "She wrote {x: [1, 2]} and \\\\", \
+            "paragraphs": ["A \\"quoted\\" {brace}", "]} \\\\\\" ["]}""";
+        String json = "{\"title\": \"Escapes {\\\"]\", \"chapters\": [" + chapter + "]}";
+
+        feedOneCharacterAtATime(json);
+
+        assertEquals(List.of(chapter), chapters);
+        Story.Chapter parsed = GSON.fromJson(chapters.getFirst(), Story.Chapter.class);
+        assertEquals("The \"}\" door", parsed.chapterTitle());
+        assertEquals("She wrote {x: [1, 2]} and \\", parsed.chapterContent());
+        assertEquals(List.of("A \"quoted\" {brace}", "]} \\\" ["), parsed.paragraphs());
+    }
+
+    @Test
+    void findsTheChaptersWhateverTheKeyOrder() {
+        feedOneCharacterAtATime("""
+            {"chapters": [{"chapterTitle": "One", "chapterContent": "First."}], "title": "chapters"}""");
+
+        assertEquals(1, chapters.size());
+        assertEquals("One", GSON.fromJson(chapters.getFirst(), Story.Chapter.class).chapterTitle());
+    }
+
+    @Test
+    void onlyHandsOverTheObjectsOfTheRootChaptersArray() {
+        feedOneCharacterAtATime("""
+            {"title": "chapters", "notes": {"chapters": [{"chapterTitle": "Nested"}]}, "outline": [{"chapters": [{}]}], \
+            "chapters": [{"chapterTitle": "One", "chapterContent": "First.", "chapters": [{"chapterTitle": "Inner"}]}]}""");
+
+        assertEquals(1, chapters.size());
+        assertEquals("One", GSON.fromJson(chapters.getFirst(), Story.Chapter.class).chapterTitle());
+    }
+
+    @Test
+    void keepsTheStreamedText() {
+        String json = "{\"title\": \"Empty\", \"chapters\": []}";
+        feedOneCharacterAtATime(json);
+
+        assertEquals(json, parser.text());
+        assertEquals(0, parser.chapterCount());
+    }
+
+    private void feedOneCharacterAtATime(String json) {
+        json.chars().forEach(c -> parser.feed(String.valueOf((char) c)));
+    }
+}
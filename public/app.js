@@ -15,133 +15,351 @@
  */
 
 document.addEventListener('DOMContentLoaded', function () {
-        try {
-            const spinner = document.querySelector('.loading-container');
-            spinner.style.display = 'flex';
-
-            let app = firebase.app();
-            const db = firebase.firestore(app);
-
-            const searchParams = new URLSearchParams(window.location.search);
-            console.log("StoryID: " + document.location.pathname.split('/').slice(-1)[0]);
-            console.log("Search param: " + searchParams.get("story"));
-
-            const storyId = searchParams.has("story") ?
-                searchParams.get("story") :
-                (document.location.pathname.startsWith('/story/') ?
-                    document.location.pathname.split('/').slice(-1)[0] :
-                    null);
-
-            const query = !!storyId ?
-                db.collection('short-story').where(firebase.firestore.FieldPath.documentId(), '==', storyId) :
-                db.collection('short-story').orderBy('createdAt', 'desc').limit(1);
-
-            query.get()
-                .then((querySnapshot) => {
-                        if (querySnapshot.empty) {
-                            window.location.href = '/';
+        const spinner = document.querySelector('.loading-container');
+        spinner.style.display = 'flex';
+
+        const searchParams = new URLSearchParams(window.location.search);
+        console.log("StoryID: " + document.location.pathname.split('/').slice(-1)[0]);
+        console.log("Search param: " + searchParams.get("story"));
+
+        const requestedStoryId = searchParams.has("story") ?
+            searchParams.get("story") :
+            (document.location.pathname.startsWith('/story/') ?
+                document.location.pathname.split('/').slice(-1)[0] :
+                null);
+
+        // stories exported as static pages are served from the CDN, without loading the Firebase SDK nor reading Firestore:
+        // the exporter writes the ID of the latest story in a small file, and the payload of each story next to its page
+        const exportedStoryId = requestedStoryId ?
+            isExported(requestedStoryId).then((exported) => exported ? requestedStoryId : null) :
+            fetch('/stories/latest.json')
+                .then((response) => response.ok ? response.json() : null)
+                .then((latest) => latest ? latest.id : null)
+                .catch(() => null);
+
+        exportedStoryId
+            .then((storyId) => {
+                if (storyId) {
+                    window.location.replace('/stories/' + storyId);
+                    return;
+                }
+                return loadFirebase().then(() => {
+                    // the previous and next stories are shown without reloading the page, so going back shows them again
+                    window.addEventListener('popstate', () => {
+                        const params = new URLSearchParams(window.location.search);
+                        showStory(params.get("story"), chunkParameter(params));
+                    });
+                    showStory(requestedStoryId, chunkParameter(searchParams));
+                });
+            })
+            .catch((e) => console.error(e));
+    }
+);
+
+const siteTitle = document.title;
+
+function isExported(storyId) {
+    return fetch(`/stories/${encodeURIComponent(storyId)}.json`, {method: 'HEAD'})
+        .then((response) => response.ok)
+        .catch(() => false);
+}
+
+// the chunk of the index where the story is, set in the links to the previous and next stories
+function chunkParameter(params) {
+    const chunk = Number.parseInt(params.get("chunk"), 10);
+    return Number.isInteger(chunk) && chunk >= 0 ? chunk : null;
+}
+
+function loadScript(src) {
+    return new Promise((resolve, reject) => {
+        const script = document.createElement('script');
+        script.src = src;
+        script.onload = resolve;
+        script.onerror = reject;
+        document.head.append(script);
+    });
+}
+
+// the Firebase SDK is only loaded for the stories which aren't exported as static pages yet
+function loadFirebase() {
+    return loadScript('/__/firebase/11.2.0/firebase-app-compat.js')
+        // include only the Firebase features as you need
+        .then(() => Promise.all([
+            loadScript('/__/firebase/11.2.0/firebase-firestore-compat.js'),
+            loadScript('/__/firebase/11.2.0/firebase-storage-compat.js')]))
+        // initialize the SDK after all desired features are loaded, set useEmulator to false
+        // to avoid connecting the SDK to running emulators
+        .then(() => loadScript('/__/firebase/init.js?useEmulator=true'));
+}
+
+// the index maintained by the generator: the stories in chronological order, in chunks of a few hundred,
+// and a meta document with the number of chunks and the latest story;
+// the chunks, like the stories, are kept for the whole visit, as the navigation doesn't reload the page
+const indexChunks = new Map();
+const storyDocuments = new Map();
+let indexMeta = null;
+
+function db() {
+    return firebase.firestore(firebase.app());
+}
+
+function loadIndexMeta() {
+    if (indexMeta === null) {
+        indexMeta = db().collection('short-story-index').doc('meta').get()
+            .then((doc) => doc.exists && doc.data().latest ? doc.data() : null)
+            .catch((e) => {
+                console.error(e);
+                return null;
+            });
+    }
+    return indexMeta;
+}
+
+function loadIndexChunk(chunk) {
+    if (!indexChunks.has(chunk)) {
+        indexChunks.set(chunk, db().collection('short-story-index').doc('chunk-' + String(chunk).padStart(5, '0')).get()
+            .then((doc) => doc.exists ? doc.data().stories : [])
+            .catch((e) => {
+                console.error(e);
+                indexChunks.delete(chunk);
+                return [];
+            }));
+    }
+    return indexChunks.get(chunk);
+}
+
+function findInChunk(id, chunk) {
+    return loadIndexChunk(chunk).then((stories) => {
+        const position = stories.findIndex((story) => story.id === id);
+        return position >= 0 ? {chunk, position, stories} : null;
+    });
+}
+
+// finds a story in the index, in the chunk of the link which led to it if any,
+// or else from the latest chunk backwards, as recent stories are read the most
+function locateInIndex(meta, id, hintedChunk) {
+    const hinted = hintedChunk !== null && hintedChunk < meta.chunks ? findInChunk(id, hintedChunk) : Promise.resolve(null);
+    const searchFrom = (chunk) => {
+        if (chunk < 0) {
+            return Promise.resolve(null);
+        }
+        if (chunk === hintedChunk) {
+            return searchFrom(chunk - 1);
+        }
+        return findInChunk(id, chunk).then((location) => location || searchFrom(chunk - 1));
+    };
+    return hinted.then((location) => location || searchFrom(meta.chunks - 1));
+}
+
+// the story before (-1) or after (+1) a story of the index, possibly in the adjacent chunk, along with its chunk
+function adjacentInIndex(meta, location, offset) {
+    const position = location.position + offset;
+    if (position >= 0 && position < location.stories.length) {
+        return Promise.resolve({...location.stories[position], chunk: location.chunk});
+    }
+    const chunk = location.chunk + offset;
+    if (chunk < 0 || chunk >= meta.chunks) {
+        return Promise.resolve(null);
+    }
+    return loadIndexChunk(chunk).then((stories) => {
+        const story = offset < 0 ? stories[stories.length - 1] : stories[0];
+        return story ? {...story, chunk} : null;
+    });
+}
+
+// fallback for the stories missing from the index
+function adjacentByDate(createdAt, selector) {
+    const order = selector === 'prev' ? 'desc' : 'asc';
+    const comparator = selector === 'prev' ? '<' : '>';
+
+    return db().collection('short-story')
+        .where('createdAt', comparator, createdAt)
+        .orderBy('createdAt', order)
+        .limit(1)
+        .get()
+        .then((querySnapshot) => querySnapshot.docs.length > 0 ?
+            {id: querySnapshot.docs[0].id, title: querySnapshot.docs[0].data().title, chunk: null} :
+            null);
+}
+
+// the document of a story, or of the latest story, read once and kept, so that a prefetched story is shown at once
+function loadStory(storyId) {
+    if (!storyId) {
+        return db().collection('short-story').orderBy('createdAt', 'desc').limit(1).get()
+            .then((querySnapshot) => querySnapshot.empty ? null : querySnapshot.docs[0]);
+    }
+    if (!storyDocuments.has(storyId)) {
+        storyDocuments.set(storyId, db().collection('short-story').doc(storyId).get()
+            .then((doc) => doc.exists ? doc : null)
+            .catch((e) => {
+                storyDocuments.delete(storyId);
+                throw e;
+            }));
+    }
+    return storyDocuments.get(storyId);
+}
+
+// the exported stories are shown from their static page, the others are read ahead of a click on their link
+function prefetchStory(story) {
+    story.exported = isExported(story.id).then((exported) => {
+        if (!exported) {
+            loadStory(story.id).catch((e) => console.error(e));
+        }
+        return exported;
+    });
+}
+
+function navigateTo(story, href) {
+    story.exported.then((exported) => {
+        if (exported) {
+            window.location.assign('/stories/' + story.id);
+            return;
+        }
+        history.pushState({}, '', href);
+        window.scrollTo(0, 0);
+        showStory(story.id, story.chunk);
+    });
+}
+
+function showStory(storyId, hintedChunk) {
+    try {
+        const spinner = document.querySelector('.loading-container');
+        spinner.style.display = 'flex';
+
+        const chaptersElem = document.querySelector("#story div.chapters");
+        chaptersElem.querySelectorAll(':scope > :not(.loading-container)').forEach((elem) => elem.remove());
+
+        // the story, the index meta document, and the chunk of the story named by the link, are all read at the same time
+        const storyDocument = loadStory(storyId);
+        const meta = loadIndexMeta();
+        if (hintedChunk !== null) {
+            loadIndexChunk(hintedChunk);
+        }
+
+        storyDocument.then((doc) => {
+            // stories are saved as drafts while their chapters are illustrated,
+            // only complete stories are shown (older stories have no status)
+            if (!doc || (doc.data().status !== undefined && doc.data().status !== 'complete')) {
+                window.location.href = '/';
+                return;
+            }
+
+            spinner.style.display = 'none';
+
+            const title = doc.data().title;
+            const chapters = doc.data().chapters;
+
+            const publicationDate = new Date(doc.data().createdAt);
+
+            console.log({title, publicationDate, chapters});
+
+            document.querySelector("#publicationDate").innerHTML =
+                new Intl.DateTimeFormat('en-US', {dateStyle: 'long', timeZone: 'UTC'})
+                    .format(publicationDate);
+
+            document.querySelector("#title").innerHTML = title;
+
+            document.title = title + " — " + siteTitle;
+
+            var first = false;
+
+            chapters.forEach((chapter) => {
+                const oneChapterDiv = document.createElement("div");
+
+                const details = document.createElement("details");
+                if (first === false) {
+                    details.setAttribute("open", true);
+                    first = true;
+                }
+
+                const summary = document.createElement("summary")
+                summary.append(document.createTextNode(chapter.chapterTitle));
+                details.append(summary);
+
+                const chapterContent = document.createElement("div");
+                if (Array.isArray(chapter.paragraphs)) {
+                    chapter.paragraphs.forEach((paragraph) => {
+                        const paragraphElem = document.createElement("p");
+                        paragraphElem.append(document.createTextNode(paragraph));
+                        chapterContent.append(paragraphElem);
+                    });
+                } else {
+                    // stories saved before chapters had paragraphs
+                    chapterContent.innerHTML = chapter.chapterContent.replaceAll('\n\n', '<br><br>');
+                }
+                details.append(chapterContent)
+                oneChapterDiv.append(details);
+
+                const imgTag = document.createElement("img");
+                oneChapterDiv.append(imgTag);
+
+                const storage = firebase.storage(firebase.app());
+                storage.refFromURL(chapter.image).getDownloadURL()
+                    .then((url) => imgTag.setAttribute("src", url));
+
+                // smaller variants of the image, for the browser to pick the one matching the screen,
+                // added once all their URLs are known, without holding back the image itself
+                const variants = Array.isArray(chapter.imageVariants) ? chapter.imageVariants : [];
+                Promise.all(variants.map((variant) =>
+                    storage.refFromURL(variant.image).getDownloadURL()
+                        .then((url) => `${url} ${variant.width}w`)))
+                    .then((srcset) => {
+                        if (srcset.length > 0) {
+                            imgTag.setAttribute("sizes", "(max-width: 40em) 100vw, 40em");
+                            imgTag.setAttribute("srcset", srcset.join(", "));
                         }
+                    });
+
+                chaptersElem.append(oneChapterDiv);
+            })
 
-                        spinner.style.display = 'none';
-
-                        querySnapshot.forEach((doc) => {
-                            const title = doc.data().title;
-                            const chapters = doc.data().chapters;
-
-                            const publicationDate = new Date(doc.data().createdAt);
-
-                            console.log({title, publicationDate, chapters});
-
-                            document.querySelector("#publicationDate").innerHTML =
-                                new Intl.DateTimeFormat('en-US', {dateStyle: 'long', timeZone: 'UTC'})
-                                    .format(publicationDate);
-
-                            document.querySelector("#title").innerHTML = title;
-
-                            document.title = title + " — " + document.title;
-
-                            const chaptersElem = document.querySelector("#story div.chapters");
-
-                            var first = false;
-
-                            chapters.forEach((chapter) => {
-                                const oneChapterDiv = document.createElement("div");
-
-                                const details = document.createElement("details");
-                                if (first === false) {
-                                    details.setAttribute("open", true);
-                                    first = true;
-                                }
-
-                                const summary = document.createElement("summary")
-                                summary.append(document.createTextNode(chapter.chapterTitle));
-                                details.append(summary);
-
-                                const chapterContent = document.createElement("div");
-                                chapterContent.innerHTML = chapter.chapterContent.replaceAll('\n\n', '<br><br>');
-                                details.append(chapterContent)
-                                oneChapterDiv.append(details);
-
-                                firebase.storage(app).refFromURL(chapter.image).getDownloadURL().then((url) => {
-                                    const imgTag = document.createElement("img");
-                                    imgTag.setAttribute("src", url);
-                                    oneChapterDiv.append(imgTag);
-                                });
-
-                                chaptersElem.append(oneChapterDiv);
-                            })
-
-                            // other stories
-
-                            function getAdjacentStory(db, createdAt, selector) {
-                                const order = selector === 'prev' ? 'desc' : 'asc';
-                                const comparator = selector === 'prev' ? '<' : '>';
-
-                                return db.collection('short-story')
-                                    .where('createdAt', comparator, createdAt)
-                                    .orderBy('createdAt', order)
-                                    .limit(1)
-                                    .get()
-                                    .then((querySnapshot) => {
-                                        const upArrow = document.querySelector('#navigation div.' + selector);
-                                        const bottomArrow = document.querySelector('#nextPrev div.' + selector);
-                                        if (querySnapshot.docs.length > 0) {
-                                            const storyId = querySnapshot.docs[0].id;
-
-                                            const anchorTop = upArrow.querySelector("a");
-                                            anchorTop.href = `/?story=${storyId}`;
-
-                                            const anchorBottom = bottomArrow.querySelector("a");
-                                            if (selector === 'prev') {
-                                                anchorBottom.innerHTML = '⇦ ' + querySnapshot.docs[0].data().title;
-                                            } else {
-                                                anchorBottom.innerHTML = querySnapshot.docs[0].data().title + ' ⇨';
-                                            }
-                                            anchorBottom.href = `/?story=${storyId}`;
-
-                                            upArrow.style.visibility = "visible";
-                                            bottomArrow.parentElement.style.visibility = "visible";
-                                        } else {
-                                            upArrow.style.visibility = "hidden";
-                                            bottomArrow.parentElement.style.display = "hidden";
-                                        }
-                                    });
-                            }
-
-                            query.get()
-                                .then((querySnapshot) => {
-                                    querySnapshot.forEach((doc) => {
-                                        const createdAt = doc.data().createdAt;
-
-                                        getAdjacentStory(db, createdAt, 'prev');
-                                        getAdjacentStory(db, createdAt, 'next');
-                                    });
-                                })
-                        });
+            // other stories
+
+            function showAdjacentStory(selector, story) {
+                const upArrow = document.querySelector('#navigation div.' + selector);
+                const bottomArrow = document.querySelector('#nextPrev div.' + selector);
+                const anchorTop = upArrow.querySelector("a");
+                const anchorBottom = bottomArrow.querySelector("a");
+                if (story) {
+                    prefetchStory(story);
+                    const href = story.chunk !== null ? `/?story=${story.id}&chunk=${story.chunk}` : `/?story=${story.id}`;
+                    const onClick = (event) => {
+                        event.preventDefault();
+                        navigateTo(story, href);
+                    };
+
+                    anchorTop.href = href;
+                    anchorTop.onclick = onClick;
+
+                    if (selector === 'prev') {
+                        anchorBottom.innerHTML = '⇦ ' + story.title;
+                    } else {
+                        anchorBottom.innerHTML = story.title + ' ⇨';
                     }
-                );
-        } catch (e) {
-            console.error(e);
-        }
+                    anchorBottom.href = href;
+                    anchorBottom.onclick = onClick;
+
+                    upArrow.style.visibility = "visible";
+                    bottomArrow.parentElement.style.visibility = "visible";
+                } else {
+                    upArrow.style.visibility = "hidden";
+                    anchorBottom.innerHTML = '';
+                    anchorBottom.onclick = null;
+                }
+            }
+
+            meta.then((meta) => meta ? locateInIndex(meta, doc.id, hintedChunk).then((location) => ({meta, location})) : {})
+                .then(({meta, location}) => {
+                    if (location) {
+                        adjacentInIndex(meta, location, -1).then((story) => showAdjacentStory('prev', story));
+                        adjacentInIndex(meta, location, +1).then((story) => showAdjacentStory('next', story));
+                    } else {
+                        adjacentByDate(doc.data().createdAt, 'prev').then((story) => showAdjacentStory('prev', story));
+                        adjacentByDate(doc.data().createdAt, 'next').then((story) => showAdjacentStory('next', story));
+                    }
+                });
+        }).catch((e) => console.error(e));
+    } catch (e) {
+        console.error(e);
     }
-);
\ No newline at end of file
+}